@@ -0,0 +1,58 @@
+package org.corespring.river.mongodb;
+
+import com.mongodb.BasicDBObject;
+import org.bson.BSONObject;
+
+import java.util.Map;
+
+/**
+ * A filtered standard cached by the converter and shared by the documents, so it must not be modified. The documents
+ * get a copy of it when a script may modify them.
+ */
+class ImmutableStandard extends BasicDBObject {
+
+  private static final long serialVersionUID = 1L;
+
+  private final boolean frozen;
+
+  ImmutableStandard(Map<String, Object> fields) {
+    for (Map.Entry<String, Object> field : fields.entrySet()) {
+      super.put(field.getKey(), field.getValue());
+    }
+    this.frozen = true;
+  }
+
+  @Override
+  public Object put(String key, Object value) {
+    if (frozen) {
+      throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+    }
+    return super.put(key, value);
+  }
+
+  @Override
+  public void putAll(Map m) {
+    throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+  }
+
+  @Override
+  public void putAll(BSONObject o) {
+    throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+  }
+
+  @Override
+  public Object removeField(String key) {
+    throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+  }
+
+  @Override
+  public Object remove(Object key) {
+    throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+  }
+
+  @Override
+  public void clear() {
+    throw new UnsupportedOperationException("Standard " + get(Standard.Keys.DOT_NOTATION) + " is immutable");
+  }
+
+}
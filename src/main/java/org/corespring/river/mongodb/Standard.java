@@ -10,6 +10,7 @@ public class Standard {
 
   // Keys for values in the standards records
   public class Keys {
+    public static final String ID = "_id";
     public static final String CATEGORY = "category";
     public static final String DOT_NOTATION = "dotNotation";
     public static final String STANDARD = "standard";
@@ -0,0 +1,80 @@
+package org.corespring.river.mongodb;
+
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.ServerAddress;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiverDefinition;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * Node-wide cache of standards, shared by reference between all the rivers (and all the shards of a river) reading the
+ * same database of the same cluster. The standards are loaded by the first river acquiring the cache and dropped when
+ * the last one releases it. Each river keeps the shared cache in sync through
+ * {@link StandardsConverter#refreshStandard(Object)} as it tails the standards oplog entries.
+ */
+public class StandardsCache {
+
+  private static final ESLogger logger = ESLoggerFactory.getLogger(StandardsCache.class.getName());
+
+  private static final Map<String, StandardsCache> caches = new HashMap<String, StandardsCache>();
+
+  private final Mongo mongo;
+  private final StandardsConverter standardsConverter;
+  private int references;
+
+  private StandardsCache(MongoDBRiverDefinition definition) {
+    this.mongo = new MongoClient(definition.getMongoServers(), definition.getMongoClientOptions());
+    this.standardsConverter = new StandardsConverter(new StandardsDAO(mongo, definition));
+  }
+
+  /**
+   * Returns the standards of the river's database, loading them if no other river on this node uses them. Each call
+   * must be paired with a call to {@link #release(MongoDBRiverDefinition)}.
+   */
+  public static StandardsConverter acquire(MongoDBRiverDefinition definition) {
+    String key = getKey(definition);
+    synchronized (caches) {
+      StandardsCache cache = caches.get(key);
+      if (cache == null) {
+        logger.info("Loading standards for {}", key);
+        cache = new StandardsCache(definition);
+        caches.put(key, cache);
+      }
+      cache.references++;
+      return cache.standardsConverter;
+    }
+  }
+
+  /**
+   * Releases the standards acquired by the river, dropping them if no other river on this node uses them.
+   */
+  public static void release(MongoDBRiverDefinition definition) {
+    String key = getKey(definition);
+    synchronized (caches) {
+      StandardsCache cache = caches.get(key);
+      if (cache != null && --cache.references == 0) {
+        logger.info("Releasing standards for {}", key);
+        caches.remove(key);
+        cache.mongo.close();
+      }
+    }
+  }
+
+  /**
+   * Identifies the cluster by its sorted server addresses, as the rivers may list them in any order.
+   */
+  static String getKey(MongoDBRiverDefinition definition) {
+    SortedSet<String> servers = new TreeSet<String>();
+    for (ServerAddress server : definition.getMongoServers()) {
+      servers.add(server.getHost() + ":" + server.getPort());
+    }
+    return servers + "/" + definition.getMongoDb();
+  }
+
+}
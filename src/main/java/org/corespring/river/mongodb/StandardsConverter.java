@@ -3,8 +3,12 @@ package org.corespring.river.mongodb;
 import com.mongodb.*;
 
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * This class is designed to take an existing content object with a standard attribute representing an array of
@@ -27,10 +31,64 @@ public class StandardsConverter {
   private static final String[] STANDARD_FIELDS =
     { Standard.Keys.CATEGORY, Standard.Keys.DOT_NOTATION, Standard.Keys.STANDARD, Standard.Keys.SUBCATEGORY };
 
-  private final Collection<Map> standards;
+  private final StandardsDAO standardsDAO;
+
+  // Filtered standards keyed by dot notation, shared by the converted documents.
+  private final Map<String, DBObject> standardsByDotNotation = new ConcurrentHashMap<String, DBObject>();
+
+  // Dot notations keyed by standard id, as removals from the oplog only carry the id.
+  private final Map<Object, String> dotNotationsById = new ConcurrentHashMap<Object, String>();
 
   public StandardsConverter(StandardsDAO standardsDAO) {
-    this.standards = standardsDAO.getStandards();
+    this.standardsDAO = standardsDAO;
+    for (Map standard : standardsDAO.getStandards()) {
+      Object dotNotation = standard.get(Standard.Keys.DOT_NOTATION);
+      // Keep the first standard for a dot notation, as the linear lookup did
+      if (dotNotation != null && !standardsByDotNotation.containsKey(dotNotation.toString())) {
+        putStandard(standard);
+      }
+    }
+  }
+
+  /**
+   * Reloads the standard with the provided id after it has been inserted, updated or removed, and returns the dot
+   * notations whose standard data changed.
+   */
+  public synchronized Set<String> refreshStandard(Object id) {
+    Set<String> changed = new HashSet<String>();
+    String previous = removeStandard(id);
+    if (previous != null) {
+      changed.add(previous);
+    }
+    Map standard = standardsDAO.getStandard(id);
+    if (standard != null) {
+      String dotNotation = putStandard(standard);
+      if (dotNotation != null) {
+        changed.add(dotNotation);
+      }
+    }
+    return changed;
+  }
+
+  private String putStandard(Map standard) {
+    Object dotNotation = standard.get(Standard.Keys.DOT_NOTATION);
+    if (dotNotation == null) {
+      return null;
+    }
+    standardsByDotNotation.put(dotNotation.toString(), filterStandard(standard));
+    Object id = standard.get(Standard.Keys.ID);
+    if (id != null) {
+      dotNotationsById.put(id, dotNotation.toString());
+    }
+    return dotNotation.toString();
+  }
+
+  private String removeStandard(Object id) {
+    String dotNotation = dotNotationsById.remove(id);
+    if (dotNotation != null) {
+      standardsByDotNotation.remove(dotNotation);
+    }
+    return dotNotation;
   }
 
   /**
@@ -66,8 +124,18 @@ public class StandardsConverter {
    *     ...
    *   }
    * </pre>
+   *
+   * The cached standards are shared by the documents, as they are only read when serialized.
    */
   public DBObject addStandardData(DBObject source) {
+    return addStandardData(source, false);
+  }
+
+  /**
+   * Same as {@link #addStandardData(com.mongodb.DBObject)}, with a copy of each standard if a script may modify the
+   * document.
+   */
+  public DBObject addStandardData(DBObject source, boolean copy) {
     if (source.containsField(ContentKeys.STANDARDS) && source.get(ContentKeys.STANDARDS) instanceof BasicDBList) {
       BasicDBList newStandards = new BasicDBList();
       BasicDBList standardsList = (BasicDBList) source.get(ContentKeys.STANDARDS);
@@ -76,9 +144,9 @@ public class StandardsConverter {
         Object obj = iterator.next();
         if (obj instanceof String) {
           String dotNotation = (String) obj;
-          Map standard = getStandardByDotNotation(dotNotation);
+          DBObject standard = getStandardByDotNotation(dotNotation);
           if (standard != null) {
-            newStandards.add(filterStandard(standard));
+            newStandards.add(copy ? new BasicDBObject(standard) : standard);
           }
         }
       }
@@ -91,37 +159,23 @@ public class StandardsConverter {
   }
 
   /**
-   * Returns a standard with the provided dot notation, null if not present.
+   * Returns the filtered standard with the provided dot notation, null if not present.
    */
-  private Map getStandardByDotNotation(String dotNotation) {
-    for (Map standard : standards) {
-      if (standard.containsKey(Standard.Keys.DOT_NOTATION) &&
-        standard.get(Standard.Keys.DOT_NOTATION).equals(dotNotation)) {
-        return standard;
-      }
-    }
-    return null;
+  DBObject getStandardByDotNotation(String dotNotation) {
+    return standardsByDotNotation.get(dotNotation);
   }
 
   /**
-   * Returns a version of the provided {@link DBObject} with only STANDARD_FIELDS' fields.
+   * Returns an immutable {@link DBObject} with only STANDARD_FIELDS' fields of the provided standard.
    */
-  private DBObject filterStandard(Map standard) {
-    DBObject object = new BasicDBObject();
+  private static DBObject filterStandard(Map standard) {
+    Map<String, Object> fields = new LinkedHashMap<String, Object>();
     for (String field : STANDARD_FIELDS) {
-      addIfExists(field, standard, object);
-    }
-    return object;
-  }
-
-
-  /**
-   * Adds the field from source to target if present.
-   */
-  private void addIfExists(String field, Map source, DBObject target) {
-    if (source.containsKey(field)) {
-      target.put(field, source.get(field));
+      if (standard.containsKey(field)) {
+        fields.put(field, standard.get(field));
+      }
     }
+    return new ImmutableStandard(fields);
   }
 
 }
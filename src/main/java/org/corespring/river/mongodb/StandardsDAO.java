@@ -1,5 +1,6 @@
 package org.corespring.river.mongodb;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
 import com.mongodb.Mongo;
@@ -12,10 +13,11 @@ import java.util.*;
  */
 public class StandardsDAO {
 
+  private final DBCollection standardsCollection;
   private final Collection<Map> standards;
 
   public StandardsDAO(Mongo mongoClient, MongoDBRiverDefinition definition) {
-    DBCollection standardsCollection = mongoClient.getDB(definition.getMongoDb()).getCollection(Standard.COLLECTION);
+    this.standardsCollection = mongoClient.getDB(definition.getMongoDb()).getCollection(Standard.COLLECTION);
     this.standards = getStandards(standardsCollection);
   }
 
@@ -35,5 +37,13 @@ public class StandardsDAO {
     return this.standards;
   }
 
+  /**
+   * Returns the current version of the standard with the provided id, null if it has been removed.
+   */
+  public Map getStandard(Object id) {
+    DBObject object = standardsCollection.findOne(new BasicDBObject(Standard.Keys.ID, id));
+    return object == null ? null : object.toMap();
+  }
+
 
 }
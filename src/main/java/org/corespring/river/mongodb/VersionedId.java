@@ -0,0 +1,132 @@
+package org.corespring.river.mongodb;
+
+import com.mongodb.DBObject;
+import org.bson.BSONObject;
+import org.bson.types.ObjectId;
+import org.elasticsearch.river.mongodb.MongoDBRiver;
+
+/**
+ * An id parsed in a single pass from any of the Corespring id forms: a plain {@link ObjectId}, a compound
+ * {"_id": ObjectId, "version": 0} object or an "530e078118a78ca06c0c1ff7:4" string. Instances are immutable, so a
+ * document's id only needs to be parsed once.
+ */
+public final class VersionedId {
+
+  private final ObjectId id;
+  private final Object version;
+  // The version compared by equals and hashCode
+  private final Object comparedVersion;
+  private final String string;
+
+  private VersionedId(ObjectId id, Object version) {
+    this.id = id;
+    this.version = version;
+    this.comparedVersion = normalizeVersion(version);
+    this.string = id.toString();
+  }
+
+  /**
+   * Parses an id, returning null if it is not one of the supported forms.
+   */
+  public static VersionedId parse(Object id) {
+    if (id instanceof ObjectId) {
+      return new VersionedId((ObjectId) id, null);
+    } else if (id instanceof BSONObject) {
+      BSONObject bsonObject = (BSONObject) id;
+      Object objectId = bsonObject.get(MongoDBRiver.MONGODB_ID_FIELD);
+      return objectId instanceof ObjectId ?
+        new VersionedId((ObjectId) objectId, bsonObject.get(VersionedIdHelper.MONGODB_VERSION_FIELD)) : null;
+    } else if (id instanceof String) {
+      String idString = (String) id;
+      int separator = idString.indexOf(':');
+      String objectId = separator < 0 ? idString : idString.substring(0, separator);
+      if (!ObjectId.isValid(objectId)) {
+        return null;
+      }
+      return new VersionedId(new ObjectId(objectId), separator < 0 ? null : parseVersion(idString.substring(separator + 1)));
+    }
+    return null;
+  }
+
+  /**
+   * Returns the id of a document, whether it is still versioned or has been unversioned. Throws an
+   * {@link IllegalArgumentException} if the document has no supported id.
+   */
+  public static VersionedId of(DBObject document) {
+    VersionedId versionedId = parse(document.get(MongoDBRiver.MONGODB_ID_FIELD));
+    if (versionedId == null) {
+      throw new IllegalArgumentException("Cannot parse _id object");
+    }
+    if (versionedId.version == null && document.containsField(VersionedIdHelper.MONGODB_VERSION_FIELD)) {
+      return new VersionedId(versionedId.id, document.get(VersionedIdHelper.MONGODB_VERSION_FIELD));
+    }
+    return versionedId;
+  }
+
+  private static Object parseVersion(String version) {
+    for (int i = 0; i < version.length(); i++) {
+      if (!Character.isDigit(version.charAt(i))) {
+        return version;
+      }
+    }
+    return version.isEmpty() || version.length() > 18 ? version : Long.valueOf(version);
+  }
+
+  /**
+   * Whole number versions are compared as a {@link Long}, whether they were stored as an Integer, a Double or a
+   * BigDecimal, so the same version parsed from any id form is equal.
+   */
+  private static Object normalizeVersion(Object version) {
+    if (version instanceof Long) {
+      return version;
+    }
+    if (version instanceof Integer || version instanceof Short || version instanceof Byte) {
+      return ((Number) version).longValue();
+    }
+    if (version instanceof Number && ((Number) version).doubleValue() == ((Number) version).longValue()) {
+      return ((Number) version).longValue();
+    }
+    return version;
+  }
+
+  /**
+   * The id without its version
+   */
+  public ObjectId getId() {
+    return id;
+  }
+
+  /**
+   * The version as stored, null if the id is not versioned
+   */
+  public Object getVersion() {
+    return version;
+  }
+
+  /**
+   * The id as indexed in Elasticsearch, i.e. without its version
+   */
+  @Override
+  public String toString() {
+    return string;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof VersionedId)) {
+      return false;
+    }
+    VersionedId that = (VersionedId) o;
+    return id.equals(that.id)
+      && (comparedVersion == null ? that.comparedVersion == null : comparedVersion.equals(that.comparedVersion));
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * id.hashCode() + (comparedVersion == null ? 0 : comparedVersion.hashCode());
+  }
+
+}
@@ -1,6 +1,8 @@
 package org.corespring.river.mongodb;
 
 import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
 import com.mongodb.QueryOperators;
 import org.bson.BSONObject;
@@ -25,6 +27,7 @@ public class VersionedIdHelper {
   static final String MONGODB_VERSION_FIELD = "version";
   static final String MONGODB_VERSIONED_VERSION_FIELD =
     MongoDBRiver.MONGODB_ID_FIELD + "." + MongoDBRiver.MONGODB_ID_FIELD;
+  static final String MONGODB_ID_VERSION_FIELD = MongoDBRiver.MONGODB_ID_FIELD + "." + MONGODB_VERSION_FIELD;
 
   /**
    * Takes a {@link Object}, either representing an {@link ObjectId} or a {@link DBObject}, and converts it to a
@@ -34,13 +37,11 @@ public class VersionedIdHelper {
     if (object == null) {
       return null;
     }
-    else if (object instanceof DBObject) {
-      return getVersionedId((DBObject) object);
-    } else if (object instanceof ObjectId) {
-      return object.toString();
-    } else {
+    VersionedId versionedId = VersionedId.parse(object);
+    if (versionedId == null) {
       throw new IllegalArgumentException("Cannot parse _id object");
     }
+    return versionedId.toString();
   }
 
   /**
@@ -50,31 +51,12 @@ public class VersionedIdHelper {
    * @return
    */
   public static ObjectId getId(Object id) {
-    if (id instanceof String) {
-      String idString = (String) id;
-      if (idString.split(":").length > 1) {
-        return new ObjectId(idString.split(":")[0]);
-      } else {
-        return new ObjectId(idString);
-      }
-    } else if (id instanceof ObjectId) {
-      return (ObjectId) id;
-    } else if (id instanceof BSONObject) {
-      BSONObject bsonObject = (BSONObject) id;
-      if (bsonObject.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
-        if (bsonObject.get(MongoDBRiver.MONGODB_ID_FIELD) instanceof ObjectId) {
-          return (ObjectId) bsonObject.get(MongoDBRiver.MONGODB_ID_FIELD);
-        } else {
-          throw new IllegalArgumentException(
-            "Object of type " + id.getClass() + "did not have " + MongoDBRiver.MONGODB_ID_FIELD + "of type " + ObjectId.class.toString());
-        }
-      } else {
-        throw new IllegalArgumentException(
-          "Object of type " + id.getClass() + " missing field " + MongoDBRiver.MONGODB_ID_FIELD);
-      }
-    } else {
-      throw new IllegalArgumentException("Object of type " + id.getClass() + " cannot be converted to ObjectId");
+    VersionedId versionedId = VersionedId.parse(id);
+    if (versionedId == null) {
+      throw new IllegalArgumentException(
+        "Object of type " + (id == null ? null : id.getClass()) + " cannot be converted to ObjectId");
     }
+    return versionedId.getId();
   }
 
   /**
@@ -94,63 +76,66 @@ public class VersionedIdHelper {
    */
   public static DBObject unversionId(DBObject dbObject) {
     if (dbObject.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
-      try {
-        dbObject.put(MONGODB_VERSION_FIELD, getVersion(dbObject));
-        dbObject.put(MongoDBRiver.MONGODB_ID_FIELD, getId(dbObject.get(MongoDBRiver.MONGODB_ID_FIELD)));
-      } catch (Exception e) {
-        logger.error("Error", e);
+      VersionedId versionedId = VersionedId.parse(dbObject.get(MongoDBRiver.MONGODB_ID_FIELD));
+      if (versionedId == null) {
+        logger.debug("Cannot unversion _id {}", dbObject.get(MongoDBRiver.MONGODB_ID_FIELD));
+        return dbObject;
       }
+      if (!dbObject.containsField(MONGODB_VERSION_FIELD)) {
+        dbObject.put(MONGODB_VERSION_FIELD, versionedId.getVersion() == null ? 0 : versionedId.getVersion());
+      }
+      dbObject.put(MongoDBRiver.MONGODB_ID_FIELD, versionedId.getId());
     }
     return dbObject;
   }
 
-  private static Object getVersion(DBObject dbObject) throws Exception {
-    if (dbObject.containsField(MONGODB_VERSION_FIELD)) {
-      return getFromBSON(dbObject, MONGODB_VERSION_FIELD);
-    } else if (dbObject.containsField(MongoDBRiver.MONGODB_ID_FIELD) &&
-      dbObject.get(MongoDBRiver.MONGODB_ID_FIELD) instanceof DBObject) {
-      return getVersion(getFromBSON(dbObject, MongoDBRiver.MONGODB_ID_FIELD, DBObject.class));
-    } else {
-      return 0;
-    }
+  /**
+   * Returns whether the id of a {@link DBObject} is versioned, i.e. of the form {"_id": ObjectId, "version": 0}.
+   */
+  public static boolean isVersioned(DBObject dbObject) {
+    return dbObject.get(MongoDBRiver.MONGODB_ID_FIELD) instanceof DBObject;
+  }
+
+  /**
+   * Returns the id of a {@link DBObject} without its version, as stored in MongoDB.
+   */
+  public static Object getBaseId(DBObject dbObject) {
+    Object id = dbObject.get(MongoDBRiver.MONGODB_ID_FIELD);
+    return id instanceof DBObject ? ((DBObject) id).get(MongoDBRiver.MONGODB_ID_FIELD) : id;
   }
 
   /**
-   * Given a {@link DBObject} object of the form:
-   *
-   * <pre>
-   *   {
-   *     "_id": ObjectId("530dfcce18a78ca06c0c1ff6"),
-   *     "version": 0
-   *   }
-   * </pre>
-   *
-   * This method will convert it to the String representation "530dfcce18a78ca06c0c1ff6". If the object does not have
-   * the appropriate "_id" field, an {@link IllegalArgumentException} will be thrown.
+   * Returns the version of a {@link DBObject}, whether its id is still versioned or has been unversioned, 0 if it has
+   * none.
    */
-  private static String getVersionedId(DBObject dbObject) {
-    String objectId = getFromBSON(dbObject, MongoDBRiver.MONGODB_ID_FIELD, ObjectId.class).toString();
-    return objectId.toString();
+  public static long getVersionNumber(DBObject dbObject) {
+    Object version = dbObject.get(MONGODB_VERSION_FIELD);
+    if (version == null) {
+      VersionedId versionedId = VersionedId.parse(dbObject.get(MongoDBRiver.MONGODB_ID_FIELD));
+      version = versionedId == null ? null : versionedId.getVersion();
+    }
+    return version instanceof Number ? ((Number) version).longValue() : 0;
   }
 
-  private static Object getFromBSON(DBObject dbObject, String field) {
-    return getFromBSON(dbObject, field, Object.class);
+  /**
+   * Returns the highest version of the provided id in a collection of versioned documents, -1 if there is none.
+   */
+  public static long getLatestVersionNumber(DBCollection collection, Object id) {
+    DBObject latest = getLatestVersion(collection, id, new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1));
+    return latest != null ? getVersionNumber(latest) : -1;
   }
 
   /**
-   * Takes a {@link DBObject}, looks for a particular field, attempts to cast it to the provided {@link Class} and
-   * return. If any of that fails, it throws {@link IllegalArgumentException}s.
+   * Returns the document with the highest version of the provided id in a collection of versioned documents, null if
+   * there is none.
    */
-  private static <T> T getFromBSON(DBObject dbObject, String field, Class<T> clazz) {
-    if (dbObject.containsField(field)) {
-      try {
-        return clazz.cast(dbObject.get(field));
-      } catch (ClassCastException e) {
-        throw new IllegalArgumentException("Field " + field + " did not match type " + clazz.toString() +
-          ", matched " + dbObject.get(field).getClass());
-      }
-    } else {
-      throw new IllegalArgumentException("DBObject is missing field " + field);
+  public static DBObject getLatestVersion(DBCollection collection, Object id, DBObject fields) {
+    DBCursor cursor = collection.find(new BasicDBObject(MONGODB_VERSIONED_VERSION_FIELD, id), fields)
+      .sort(new BasicDBObject(MONGODB_ID_VERSION_FIELD, -1)).limit(1);
+    try {
+      return cursor.hasNext() ? cursor.next() : null;
+    } finally {
+      cursor.close();
     }
   }
 
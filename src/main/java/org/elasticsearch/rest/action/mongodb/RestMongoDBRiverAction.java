@@ -7,10 +7,17 @@ import java.util.List;
 import java.util.Map;
 
 import org.bson.types.BSONTimestamp;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
+import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 //import org.elasticsearch.index.query.FieldQueryBuilder;
@@ -26,12 +33,16 @@ import org.elasticsearch.river.RiverIndexName;
 import org.elasticsearch.river.RiverSettings;
 import org.elasticsearch.river.mongodb.MongoDBRiver;
 import org.elasticsearch.river.mongodb.MongoDBRiverDefinition;
+import org.elasticsearch.river.mongodb.RiverMetrics;
 import org.elasticsearch.river.mongodb.Status;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 import org.elasticsearch.search.SearchHit;
 
 public class RestMongoDBRiverAction extends BaseRestHandler {
 
+    private static final TimeValue RIVERS_SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final int RIVERS_SCROLL_SIZE = 100;
+
     private final String riverIndexName;
 
     @Inject
@@ -41,6 +52,7 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         String baseUrl = "/" + riverIndexName + "/" + MongoDBRiver.TYPE;
         logger.trace("RestMongoDBRiverAction - baseUrl: {}", baseUrl);
         controller.registerHandler(RestRequest.Method.GET, baseUrl + "/{action}", this);
+        controller.registerHandler(RestRequest.Method.GET, baseUrl + "/{river}/stats", this);
         controller.registerHandler(RestRequest.Method.POST, baseUrl + "/{river}/{action}", this);
     }
 
@@ -53,6 +65,13 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         if (uri.endsWith("list")) {
             list(request, channel);
             return;
+        } else if (uri.endsWith("stats")) {
+            stats(request, channel);
+            return;
+        } else if (request.method() != RestRequest.Method.POST) {
+            // The actions changing a river are POST only
+            respondError(request, channel, "action not found: " + uri, RestStatus.METHOD_NOT_ALLOWED);
+            return;
         } else if (uri.endsWith("start")) {
             start(request, channel);
             return;
@@ -100,6 +119,32 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         respondSuccess(request, channel, RestStatus.OK);
     }
 
+    /*
+     * The metrics are held by the node running the river
+     */
+    private void stats(RestRequest request, RestChannel channel) {
+        String river = request.param("river");
+        if (river == null || river.isEmpty()) {
+            respondError(request, channel, "Parameter 'river' is required", RestStatus.BAD_REQUEST);
+            return;
+        }
+        RiverMetrics metrics = RiverMetrics.get(river);
+        if (metrics == null) {
+            respondError(request, channel, "River " + river + " is not running on this node", RestStatus.NOT_FOUND);
+            return;
+        }
+        try {
+            XContentBuilder builder = RestXContentBuilder.restContentBuilder(request);
+            builder.startObject();
+            builder.field("name", river);
+            metrics.toXContent(builder, request);
+            builder.endObject();
+            channel.sendResponse(new XContentRestResponse(request, RestStatus.OK, builder));
+        } catch (Throwable e) {
+            errorResponse(request, channel, e);
+        }
+    }
+
     private void list(RestRequest request, RestChannel channel) {
         try {
             List<Map<String, Object>> rivers = getRivers();
@@ -145,28 +190,71 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         }
     }
 
+    /*
+     * Scroll through all the rivers, a page at a time
+     */
     private List<Map<String, Object>> getRivers() {
-        SearchResponse searchResponse = client.prepareSearch(riverIndexName)
-                .setQuery(QueryBuilders.queryString(MongoDBRiver.TYPE).defaultField("type")).get();
-        long totalHits = searchResponse.getHits().totalHits();
-        logger.trace("totalHits: {}", totalHits);
+        SearchResponse searchResponse = client.prepareSearch(riverIndexName).setSearchType(SearchType.SCAN)
+                .setScroll(RIVERS_SCROLL_KEEP_ALIVE).setQuery(QueryBuilders.queryString(MongoDBRiver.TYPE).defaultField("type"))
+                .setSize(RIVERS_SCROLL_SIZE).get();
+        logger.trace("totalHits: {}", searchResponse.getHits().totalHits());
         List<Map<String, Object>> rivers = new ArrayList<Map<String, Object>>();
-        for (SearchHit hit : searchResponse.getHits().hits()) {
-            Map<String, Object> source = new HashMap<String, Object>();
+        try {
+            while (true) {
+                searchResponse = client.prepareSearchScroll(searchResponse.getScrollId()).setScroll(RIVERS_SCROLL_KEEP_ALIVE).get();
+                if (searchResponse.getHits().getHits().length == 0) {
+                    break;
+                }
+                rivers.addAll(getRivers(searchResponse.getHits().getHits()));
+            }
+        } finally {
+            // Release the scan context instead of waiting for its keep alive
+            client.prepareClearScroll().addScrollId(searchResponse.getScrollId()).get();
+        }
+        return rivers;
+    }
+
+    /*
+     * The status and the checkpoint of a page of rivers are read with a single
+     * multi-get, their index counts with a single multi-search
+     */
+    private List<Map<String, Object>> getRivers(SearchHit[] hits) {
+        List<MongoDBRiverDefinition> definitions = new ArrayList<MongoDBRiverDefinition>(hits.length);
+        MultiGetRequestBuilder request = client.prepareMultiGet();
+        MultiSearchRequestBuilder countRequest = client.prepareMultiSearch();
+        for (SearchHit hit : hits) {
             String riverName = hit.getType();
             RiverSettings riverSettings = new RiverSettings(null, hit.getSource());
             MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName, riverIndexName, riverSettings, null);
+            definitions.add(definition);
+            request.add(riverIndexName, riverName, MongoDBRiver.STATUS_ID);
+            request.add(riverIndexName, riverName, definition.getMongoOplogNamespace());
+            countRequest.add(prepareIndexCount(definition));
+        }
+        MultiGetItemResponse[] responses = request.get().getResponses();
+        MultiSearchResponse.Item[] countResponses = countRequest.get().getResponses();
+
+        List<Map<String, Object>> rivers = new ArrayList<Map<String, Object>>(hits.length);
+        for (int i = 0; i < hits.length; i++) {
+            SearchHit hit = hits[i];
+            MongoDBRiverDefinition definition = definitions.get(i);
+            MultiGetItemResponse statusResponse = responses[2 * i];
+            MultiGetItemResponse lastTimestampResponse = responses[2 * i + 1];
 
-            BSONTimestamp ts = MongoDBRiver.getLastTimestamp(client, definition);
+            Status status = statusResponse.isFailed() ? Status.UNKNOWN : MongoDBRiverHelper.getRiverStatus(statusResponse.getResponse());
+            BSONTimestamp ts = lastTimestampResponse.isFailed() ? null : MongoDBRiver.getLastTimestamp(
+                    lastTimestampResponse.getResponse(), definition);
             Long lastTimestamp = null;
             if (ts != null) {
                 lastTimestamp = 1000L * ts.getTime();
             }
-            source.put("name", riverName);
-            source.put("status", MongoDBRiverHelper.getRiverStatus(client, riverName));
+            Map<String, Object> source = new HashMap<String, Object>();
+            source.put("name", hit.getType());
+            source.put("status", status);
             source.put("settings", hit.getSource());
             source.put("lastTimestamp", lastTimestamp);
-            source.put("indexCount", MongoDBRiver.getIndexCount(client, definition));
+            // The index of a river not started yet is missing
+            source.put("indexCount", countResponses[i].isFailure() ? 0L : countResponses[i].getResponse().getHits().getTotalHits());
             if (logger.isTraceEnabled()) {
                 logger.trace("source: {}", hit.getSourceAsString());
             }
@@ -175,4 +263,12 @@ public class RestMongoDBRiverAction extends BaseRestHandler {
         return rivers;
     }
 
+    private SearchRequestBuilder prepareIndexCount(MongoDBRiverDefinition definition) {
+        SearchRequestBuilder builder = client.prepareSearch(definition.getIndexName()).setSearchType(SearchType.COUNT);
+        if (!definition.isImportAllCollections()) {
+            builder.setTypes(definition.getTypeName());
+        }
+        return builder;
+    }
+
 }
@@ -0,0 +1,77 @@
+package org.elasticsearch.river.mongodb;
+
+/**
+ * Limits the number of in-flight bulk requests with additive increase /
+ * multiplicative decrease. The limit starts at the configured maximum, grows
+ * by one after a full window of successful bulks, and is halved when a bulk is
+ * rejected or its latency exceeds twice the average latency.
+ */
+class BulkConcurrencyController {
+
+    static final double LATENCY_THRESHOLD = 2.0;
+    // Weight of the last bulk in the average latency
+    static final double LATENCY_SMOOTHING = 0.2;
+
+    private final int maxLimit;
+    private int limit;
+    private int inFlight;
+    private int successes;
+    private double averageLatency;
+
+    BulkConcurrencyController(int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = this.maxLimit;
+    }
+
+    /**
+     * Block until the in-flight bulk requests are below the limit, before
+     * adding a request that may send a new bulk
+     */
+    synchronized void awaitCapacity() throws InterruptedException {
+        while (inFlight >= limit) {
+            wait();
+        }
+    }
+
+    /**
+     * Record a bulk request sent, without blocking
+     */
+    synchronized void sent() {
+        inFlight++;
+    }
+
+    /**
+     * Record the outcome of a bulk request recorded by {@link #sent()}
+     *
+     * @param latency
+     *            in milliseconds
+     * @param rejected
+     *            true if the cluster rejected the bulk or some of its items
+     */
+    synchronized void release(long latency, boolean rejected) {
+        inFlight = Math.max(0, inFlight - 1);
+        if (rejected || (averageLatency > 0 && latency > LATENCY_THRESHOLD * averageLatency)) {
+            limit = Math.max(1, limit / 2);
+            successes = 0;
+        } else if (++successes >= limit) {
+            limit = Math.min(maxLimit, limit + 1);
+            successes = 0;
+        }
+        if (!rejected) {
+            averageLatency = averageLatency == 0 ? latency : averageLatency + LATENCY_SMOOTHING * (latency - averageLatency);
+        }
+        notifyAll();
+    }
+
+    synchronized int getLimit() {
+        return limit;
+    }
+
+    synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    int getMaxLimit() {
+        return maxLimit;
+    }
+}
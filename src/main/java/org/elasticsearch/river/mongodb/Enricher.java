@@ -0,0 +1,232 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.elasticsearch.river.mongodb.MongoDBRiverDefinition.Enrichment;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+import com.mongodb.Mongo;
+import com.mongodb.MongoClient;
+import com.mongodb.QueryOperators;
+
+/**
+ * Denormalizes the documents of a batch before they are indexed. Each
+ * {@link Enrichment} replaces the references held by a field, plain keys or
+ * DBRefs, with the matching documents of a lookup collection. The references
+ * of the whole batch missing from the cache are resolved with one $in query
+ * per lookup collection. The documents looked up are shared by all the
+ * documents referencing them, and looked up again after the cache TTL.
+ */
+class Enricher {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(Enricher.class.getName());
+
+    private final Mongo mongo;
+    private final DB db;
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    Enricher(MongoDBRiverDefinition definition) {
+        this(new MongoClient(definition.getMongoServers(), definition.getMongoClientOptions()), definition);
+    }
+
+    private Enricher(Mongo mongo, MongoDBRiverDefinition definition) {
+        this(mongo, mongo.getDB(definition.getMongoDb()), definition.getEnrichments());
+    }
+
+    Enricher(Mongo mongo, DB db, List<Enrichment> enrichments) {
+        this.mongo = mongo;
+        this.db = db;
+        for (Enrichment enrichment : enrichments) {
+            rules.add(new Rule(enrichment));
+        }
+    }
+
+    void enrich(List<QueueEntry> batch) {
+        for (Rule rule : rules) {
+            try {
+                rule.enrich(batch);
+            } catch (RuntimeException e) {
+                // MongoException, or a lookup document the rule cannot use
+                logger.warn("Cannot enrich field {} - documents are indexed with their references", e, rule.enrichment.getField());
+            }
+        }
+    }
+
+    void close() {
+        if (mongo != null) {
+            mongo.close();
+        }
+    }
+
+    private class Rule {
+
+        private final Enrichment enrichment;
+        private final DBObject projection;
+        // Documents looked up by collection, key field and key value
+        private final Cache<List<Object>, DBObject> cache;
+        private final Map<List<Object>, DBObject> preloaded;
+        private long preloadedAt;
+
+        Rule(Enrichment enrichment) {
+            this.enrichment = enrichment;
+            if (enrichment.getFields().isEmpty()) {
+                this.projection = null;
+            } else {
+                this.projection = new BasicDBObject(enrichment.getKey(), 1).append(MongoDBRiver.MONGODB_ID_FIELD, 1);
+                for (String field : enrichment.getFields()) {
+                    projection.put(field, 1);
+                }
+            }
+            if (enrichment.isPreload() && enrichment.getCollection() != null) {
+                this.cache = null;
+                this.preloaded = new HashMap<List<Object>, DBObject>();
+                preload();
+            } else {
+                this.cache = CacheBuilder.newBuilder().maximumSize(enrichment.getCacheSize())
+                        .expireAfterWrite(enrichment.getCacheTtl().millis(), TimeUnit.MILLISECONDS).build();
+                this.preloaded = null;
+            }
+        }
+
+        private void preload() {
+            Map<List<Object>, DBObject> documents = new HashMap<List<Object>, DBObject>();
+            DBCursor cursor = db.getCollection(enrichment.getCollection()).find(new BasicDBObject(), projection);
+            try {
+                while (cursor.hasNext()) {
+                    DBObject document = cursor.next();
+                    Object key = document.get(enrichment.getKey());
+                    documents.put(lookupKey(enrichment.getCollection(), enrichment.getKey(), key), document);
+                }
+            } finally {
+                cursor.close();
+            }
+            // Keep the previous documents if the reload fails midway
+            preloaded.clear();
+            preloaded.putAll(documents);
+            preloadedAt = System.nanoTime();
+            logger.info("Preloaded {} documents from {} for field {}", preloaded.size(), enrichment.getCollection(),
+                    enrichment.getField());
+        }
+
+        void enrich(List<QueueEntry> batch) {
+            if (preloaded != null && System.nanoTime() - preloadedAt >= enrichment.getCacheTtl().nanos()) {
+                preload();
+            }
+
+            // 1. Collect the references missing from the cache, by
+            // collection and key field
+            Map<List<Object>, Set<Object>> missing = new HashMap<List<Object>, Set<Object>>();
+            for (QueueEntry entry : batch) {
+                if (isEnrichable(entry)) {
+                    collect(entry.getData().get(enrichment.getField()), missing);
+                }
+            }
+
+            // 2. Look them up, one query per collection
+            for (Map.Entry<List<Object>, Set<Object>> lookup : missing.entrySet()) {
+                String collection = (String) lookup.getKey().get(0);
+                String keyField = (String) lookup.getKey().get(1);
+                DBObject query = new BasicDBObject(keyField, new BasicDBObject(QueryOperators.IN, lookup.getValue()));
+                DBCursor cursor = db.getCollection(collection).find(query, projection);
+                try {
+                    while (cursor.hasNext()) {
+                        DBObject document = cursor.next();
+                        cache.put(lookupKey(collection, keyField, document.get(keyField)), document);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (logger.isTraceEnabled()) {
+                    logger.trace("Looked up {} references from {}", lookup.getValue().size(), collection);
+                }
+            }
+
+            // 3. Replace the references
+            for (QueueEntry entry : batch) {
+                if (isEnrichable(entry) && entry.getData().containsField(enrichment.getField())) {
+                    entry.getData().put(enrichment.getField(), resolve(entry.getData().get(enrichment.getField())));
+                }
+            }
+        }
+
+        private boolean isEnrichable(QueueEntry entry) {
+            return (entry.getOperation() == Operation.INSERT || entry.getOperation() == Operation.UPDATE) && !entry.isAttachment()
+                    && entry.getData() != null;
+        }
+
+        private void collect(Object value, Map<List<Object>, Set<Object>> missing) {
+            if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    collect(item, missing);
+                }
+                return;
+            }
+            List<Object> key = key(value);
+            if (key == null || preloaded != null || cache.getIfPresent(key) != null) {
+                return;
+            }
+            List<Object> lookup = key.subList(0, 2);
+            Set<Object> values = missing.get(lookup);
+            if (values == null) {
+                values = new HashSet<Object>();
+                missing.put(lookup, values);
+            }
+            values.add(key.get(2));
+        }
+
+        private Object resolve(Object value) {
+            if (value instanceof List) {
+                BasicDBList resolved = new BasicDBList();
+                for (Object item : (List<?>) value) {
+                    resolved.add(resolve(item));
+                }
+                return resolved;
+            }
+            List<Object> key = key(value);
+            if (key == null) {
+                return value;
+            }
+            DBObject document = preloaded != null ? preloaded.get(key) : cache.getIfPresent(key);
+            return document != null ? document : value;
+        }
+
+        /*
+         * DBRefs are looked up by _id in their own collection, other values
+         * by the key field in the lookup collection
+         */
+        private List<Object> key(Object value) {
+            if (value instanceof DBRef) {
+                DBRef ref = (DBRef) value;
+                if (enrichment.getCollection() != null && !enrichment.getCollection().equals(ref.getRef())) {
+                    return null;
+                }
+                return lookupKey(ref.getRef(), MongoDBRiver.MONGODB_ID_FIELD, ref.getId());
+            }
+            if (value == null || value instanceof DBObject || enrichment.getCollection() == null) {
+                return null;
+            }
+            return lookupKey(enrichment.getCollection(), enrichment.getKey(), value);
+        }
+    }
+
+    private static List<Object> lookupKey(String collection, String keyField, Object value) {
+        return Arrays.<Object> asList(collection, keyField, value);
+    }
+}
@@ -1,108 +1,173 @@
 package org.elasticsearch.river.mongodb;
 
-import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 import java.io.IOException;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
 
 import org.bson.types.BSONTimestamp;
-import org.bson.types.BasicBSONList;
 import org.corespring.river.mongodb.VersionedIdHelper;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
 import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
-import org.elasticsearch.common.xcontent.XContentFactory;
-import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.elasticsearch.river.mongodb.util.BSONXContentSerializer;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 import org.elasticsearch.script.ExecutableScript;
 import org.elasticsearch.script.ScriptService;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHitField;
 
-import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.DBRef;
 import com.mongodb.gridfs.GridFSDBFile;
+import com.mongodb.gridfs.GridFSFile;
 
 class Indexer implements Runnable {
 
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
-    private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
     private final Client client;
     private final ScriptService scriptService;
-
-    private final Map<SimpleEntry<String, String>, MongoDBRiverBulkProcessor> processors = Maps.newHashMap();
+    private final BSONXContentSerializer serializer;
+
+    private static final TimeValue CHILDREN_SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final int CHILDREN_SCROLL_SIZE = 100;
+    private static final TimeValue RELOCATIONS_SCROLL_KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+    private static final int RELOCATIONS_SCROLL_SIZE = 100;
+    private static final int INDEXED_ATTACHMENTS_CACHE_SIZE = 10000;
+    private static final int DOCUMENT_LOCATIONS_CACHE_SIZE = 10000;
+
+    private final MongoDBRiverBulkProcessor bulkProcessor;
+    private final Enricher enricher;
+    // Parents deleted and children indexed during the current flush window
+    private final Map<DocumentKey, Set<String>> pendingParents = Maps.newHashMap();
+    private final Set<ChildKey> indexedChildren = new HashSet<ChildKey>();
+    // Routed updates missing from documentLocations, held until the end of the
+    // batch, by index / type and id
+    private final Map<SimpleEntry<String, String>, Map<String, Relocation>> pendingRelocations = Maps.newHashMap();
+    // Content of the last indexed version of the attachments, by id
+    private final Cache<String, IndexedAttachment> indexedAttachments = CacheBuilder.newBuilder()
+            .maximumSize(INDEXED_ATTACHMENTS_CACHE_SIZE).build();
+    // Routing and parent of the last write of the routed documents, by index,
+    // type and id
+    private final Cache<String, DocumentLocation> documentLocations = CacheBuilder.newBuilder()
+            .maximumSize(DOCUMENT_LOCATIONS_CACHE_SIZE).build();
 
     public Indexer(MongoDBRiver river, MongoDBRiverDefinition definition, SharedContext context, Client client, ScriptService scriptService) {
-        this.river = river;
         this.definition = definition;
         this.context = context;
         this.client = client;
         this.scriptService = scriptService;
+        this.serializer = new BSONXContentSerializer(definition.getSourceContentType());
         logger.trace(
                 "Create bulk processor with parameters - bulk actions: {} - concurrent request: {} - flush interval: {} - bulk size: {}",
                 definition.getBulk().getBulkActions(), definition.getBulk().getConcurrentRequests(), definition.getBulk()
                         .getFlushInterval(), definition.getBulk().getBulkSize());
-        getBulkProcessor(definition.getIndexName(), definition.getTypeName());
+        this.bulkProcessor = new MongoDBRiverBulkProcessor.Builder(river, definition, client).build();
+        this.enricher = definition.getEnrichments().isEmpty() ? null : new Enricher(definition);
     }
 
     @Override
     public void run() {
-        while (context.getStatus() == Status.RUNNING) {
+        int maxBatchSize = definition.getBulk().getBulkActions() > 0 ? definition.getBulk().getBulkActions()
+                : MongoDBRiverDefinition.DEFAULT_BULK_ACTIONS;
+        List<QueueEntry> batch = new ArrayList<QueueEntry>(maxBatchSize);
+        try {
+            while (context.getStatus() == Status.RUNNING) {
 
-            try {
-                BSONTimestamp lastTimestamp = null;
+                try {
+                    BSONTimestamp lastTimestamp = null;
 
-                // 1. Attempt to fill as much of the bulk request as possible
-                QueueEntry entry = context.getStream().take();
-                lastTimestamp = processBlockingQueue(entry);
-                while ((entry = context.getStream().poll(definition.getBulk().getFlushInterval().millis(), MILLISECONDS)) != null) {
-                    lastTimestamp = processBlockingQueue(entry);
-                }
+                    // 1. Pull a batch of entries, waiting at most flush interval
+                    // for it to fill
+                    batch.clear();
+                    fillBatch(batch, maxBatchSize);
 
-                // 2. Update the timestamp
-                if (lastTimestamp != null) {
-                    MongoDBRiver.setLastTimestamp(definition, lastTimestamp,
-                            getBulkProcessor(definition.getIndexName(), definition.getTypeName()).getBulkProcessor());
-                }
+                    // 2. Resolve the references of the whole batch
+                    if (enricher != null) {
+                        enricher.enrich(batch);
+                    }
 
-            } catch (InterruptedException e) {
-                logger.info("river-mongodb indexer interrupted");
-                releaseProcessors();
-                Thread.currentThread().interrupt();
-                break;
+                    // 3. Process the batch
+                    for (QueueEntry entry : batch) {
+                        BSONTimestamp timestamp = processBlockingQueue(entry);
+                        if (timestamp != null) {
+                            lastTimestamp = timestamp;
+                        }
+                    }
+
+                    // 4. Delete the previous copies of the relocated
+                    // documents, and the children of the deleted parents
+                    deleteRelocatedDocuments();
+                    deletePendingChildren();
+
+                    // 5. Update the timestamp
+                    if (lastTimestamp != null) {
+                        bulkProcessor.checkpoint(context.getCheckpoint(lastTimestamp));
+                    }
+
+                } catch (InterruptedException e) {
+                    logger.info("river-mongodb indexer interrupted");
+                    bulkProcessor.close();
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            // Also on a status change or a stop, not only on an interrupt
+            if (enricher != null) {
+                enricher.close();
             }
         }
     }
 
-    private MongoDBRiverBulkProcessor getBulkProcessor(String index, String type) {
-        SimpleEntry<String, String> entry = new SimpleEntry<String, String>(index, type);
-        if (!processors.containsKey(entry)) {
-            processors.put(new SimpleEntry<String, String>(index, type), new MongoDBRiverBulkProcessor.Builder(river, definition, client,
-                    index, type).build());
+    /*
+     * Block until one entry is available, then drain the stream until the
+     * batch is full or the flush interval elapsed. The linger time bounds the
+     * delay of the checkpoint under sustained load.
+     */
+    private void fillBatch(List<QueueEntry> batch, int maxBatchSize) throws InterruptedException {
+        BlockingQueue<QueueEntry> stream = context.getStream();
+        batch.add(stream.take());
+        long deadline = System.nanoTime() + definition.getBulk().getFlushInterval().nanos();
+        stream.drainTo(batch, maxBatchSize - batch.size());
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            QueueEntry entry = stream.poll(remaining, NANOSECONDS);
+            if (entry == null) {
+                break;
+            }
+            batch.add(entry);
+            stream.drainTo(batch, maxBatchSize - batch.size());
         }
-        return processors.get(entry);
-    }
-
-    private void releaseProcessors() {
-        for (MongoDBRiverBulkProcessor processor : processors.values()) {
-            processor.getBulkProcessor().close();
+        if (logger.isTraceEnabled()) {
+            logger.trace("Pulled {} entries from the stream", batch.size());
         }
-        processors.clear();
     }
 
     @SuppressWarnings({ "unchecked" })
@@ -123,7 +188,7 @@ class Indexer implements Runnable {
         }
         if (MongoDBRiver.OPLOG_COMMAND_OPERATION.equals(operation)) {
             try {
-                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), null, operation, definition.getIndexName(), type, null, null, lastTimestamp);
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
@@ -132,14 +197,14 @@ class Indexer implements Runnable {
 
         String objectId = "";
         if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) != null) {
-            objectId = VersionedIdHelper.versionedIdString(entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD));
+            objectId = entry.getVersionedId().toString();
         }
 
         // TODO: Should the river support script filter,
         // advanced_transformation, include_collection for GridFS?
         if (entry.isAttachment()) {
             try {
-                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null);
+                updateBulkRequest(entry.getData(), objectId, operation, definition.getIndexName(), type, null, null, lastTimestamp);
             } catch (IOException ioEx) {
                 logger.error("Update bulk failed.", ioEx);
             }
@@ -155,58 +220,61 @@ class Indexer implements Runnable {
         }
 
         if (!definition.getIncludeCollection().isEmpty()) {
-            logger.trace("About to include collection. set attribute {} / {} ", definition.getIncludeCollection(),
-                    definition.getMongoCollection());
+            if (logger.isTraceEnabled()) {
+                logger.trace("About to include collection. set attribute {} / {} ", definition.getIncludeCollection(),
+                        definition.getMongoCollection());
+            }
             entry.getData().put(definition.getIncludeCollection(), definition.getMongoCollection());
         }
 
-        Map<String, Object> ctx = null;
-        try {
-            ctx = XContentFactory.xContent(XContentType.JSON).createParser("{}").mapAndClose();
-        } catch (IOException e) {
-            logger.warn("failed to parse {}", e);
-        }
-        Map<String, Object> data = entry.getData().toMap();
+        // The entry data is passed through as is. It is only copied when a
+        // script replaces the document with something else than a DBObject.
+        Map<String, Object> ctx = Collections.emptyMap();
+        DBObject data = entry.getData();
         if (hasScript()) {
-            if (ctx != null) {
-                ctx.put("document", entry.getData());
-                ctx.put("operation", operation.getValue());
-                if (!objectId.isEmpty()) {
-                    ctx.put("id", objectId);
-                }
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Script to be executed: {} - {}", definition.getScriptType(), definition.getScript());
-                    logger.trace("Context before script executed: {}", ctx);
-                }
-                try {
-                    ExecutableScript executableScript = scriptService.executable(definition.getScriptType(), definition.getScript(),
-                            ImmutableMap.of("logger", logger));
-                    executableScript.setNextVar("ctx", ctx);
-                    executableScript.run();
-                    // we need to unwrap the context object...
-                    ctx = (Map<String, Object>) executableScript.unwrap(ctx);
-                    logger.debug("context after script has been executed: {}", ctx);
-                } catch (Exception e) {
-                    logger.warn("failed to script process {}, ignoring", e, ctx);
-                    MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
-                }
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Context after script executed: {}", ctx);
-                }
-                if (isDocumentIgnored(ctx)) {
-                    logger.debug("From script ignore document id: {}", objectId);
-                    // ignore document
-                    return lastTimestamp;
-                }
-                if (isDocumentDeleted(ctx)) {
-                    ctx.put("operation", MongoDBRiver.OPLOG_DELETE_OPERATION);
-                }
-                if (ctx.containsKey("document")) {
-                    data = (Map<String, Object>) ctx.get("document");
+            ctx = new HashMap<String, Object>();
+            ctx.put("document", data);
+            ctx.put("operation", operation.getValue());
+            if (!objectId.isEmpty()) {
+                ctx.put("id", objectId);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Script to be executed: {} - {}", definition.getScriptType(), definition.getScript());
+                logger.trace("Context before script executed: {}", ctx);
+            }
+            try {
+                ExecutableScript executableScript = scriptService.executable(definition.getScriptType(), definition.getScript(),
+                        ImmutableMap.of("logger", logger));
+                executableScript.setNextVar("ctx", ctx);
+                long start = System.nanoTime();
+                executableScript.run();
+                context.getMetrics().scriptTime.record(System.nanoTime() - start, NANOSECONDS);
+                // we need to unwrap the context object...
+                ctx = (Map<String, Object>) executableScript.unwrap(ctx);
+            } catch (Exception e) {
+                logger.warn("failed to script process {}, ignoring", e, ctx);
+                MongoDBRiverHelper.setRiverStatusAsync(client, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("Context after script executed: {}", ctx);
+            }
+            if (isDocumentIgnored(ctx)) {
+                logger.debug("From script ignore document id: {}", objectId);
+                // ignore document
+                return lastTimestamp;
+            }
+            if (isDocumentDeleted(ctx)) {
+                ctx.put("operation", MongoDBRiver.OPLOG_DELETE_OPERATION);
+            }
+            if (ctx.containsKey("document")) {
+                data = toDBObject(ctx.get("document"));
+                if (logger.isDebugEnabled()) {
                     logger.debug("From script document: {}", data);
                 }
-                operation = extractOperation(ctx);
-                logger.debug("From script operation: {} -> {}", ctx.get("operation").toString(), operation);
+            }
+            operation = extractOperation(ctx);
+            if (logger.isDebugEnabled()) {
+                logger.debug("From script operation: {} -> {}", ctx.get("operation"), operation);
             }
         }
 
@@ -216,7 +284,7 @@ class Indexer implements Runnable {
             String parent = extractParent(ctx);
             String routing = extractRouting(ctx);
             objectId = extractObjectId(ctx, objectId);
-            updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+            updateBulkRequest(data, objectId, operation, index, type, routing, parent, lastTimestamp);
         } catch (IOException e) {
             logger.warn("failed to parse {}", e, entry.getData());
         }
@@ -224,7 +292,7 @@ class Indexer implements Runnable {
     }
 
     private void updateBulkRequest(DBObject data, String objectId, Operation operation, String index, String type, String routing,
-            String parent) throws IOException {
+            String parent, BSONTimestamp oplogTimestamp) throws IOException {
         if (logger.isTraceEnabled()) {
             logger.trace("Operation: {} - index: {} - type: {} - routing: {} - parent: {}", operation, index, type, routing, parent);
         }
@@ -235,6 +303,12 @@ class Indexer implements Runnable {
             return;
         }
 
+        // Keep the oplog order of the operations on an update held for its
+        // location lookup
+        if (operation == Operation.DROP_COLLECTION || isRelocationPending(objectId, index, type)) {
+            deleteRelocatedDocuments();
+        }
+
         boolean isAttachment = false;
 
         if (logger.isDebugEnabled()) {
@@ -244,48 +318,450 @@ class Indexer implements Runnable {
             if (logger.isTraceEnabled()) {
                 logger.trace("Insert operation - id: {} - contains attachment: {}", objectId, isAttachment);
             }
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            bulkProcessor.addBulkRequest(index, type, objectId, build(data, objectId), routing, parent, oplogTimestamp,
+                    trackIndexedAttachment(data, objectId));
+            trackIndexedChild(objectId, index, type, parent);
+            trackDocumentLocation(objectId, index, type, routing, parent);
         }
-        // UPDATE = DELETE + INSERT operation
+        // UPDATE = INSERT operation, unless the document moves to another
+        // parent or routing
         if (operation == Operation.UPDATE) {
             if (logger.isTraceEnabled()) {
                 logger.trace("Update operation - id: {} - contains attachment: {}", objectId, isAttachment);
             }
-            deleteBulkRequest(objectId, index, type, routing, parent);
-            getBulkProcessor(index, type).addBulkRequest(objectId, build(data, objectId), routing, parent);
+            if (isAttachmentContentUnchanged(data, objectId)) {
+                logger.debug("Content of attachment {} unchanged - update its metadata only", objectId);
+                bulkProcessor.partialUpdateBulkRequest(index, type, objectId, MongoDBHelper.serializeMetadata((GridFSFile) data), routing,
+                        parent, oplogTimestamp, trackIndexedAttachment(data, objectId),
+                        indexMissingAttachment(data, objectId, index, type, routing, parent, oplogTimestamp));
+                return;
+            }
+            Relocation relocation = new Relocation(objectId, index, type, build(data, objectId), routing, parent, oplogTimestamp,
+                    trackIndexedAttachment(data, objectId));
+            if (!deleteRelocatedDocument(relocation)) {
+                relocation.update();
+            }
+            trackIndexedChild(objectId, index, type, parent);
+            trackDocumentLocation(objectId, index, type, routing, parent);
         }
         if (operation == Operation.DELETE) {
             logger.info("Delete request [{}], [{}], [{}]", index, type, objectId);
-            deleteBulkRequest(objectId, index, type, routing, parent);
+            indexedAttachments.invalidate(objectId);
+            documentLocations.invalidate(getLocationKey(objectId, index, type));
+            deleteBulkRequest(objectId, index, type, routing, parent, oplogTimestamp);
         }
         if (operation == Operation.DROP_COLLECTION) {
             if (definition.isDropCollection()) {
-                MongoDBRiverBulkProcessor processor = getBulkProcessor(index, type);
-                processor.dropIndex();
+                bulkProcessor.dropIndex(index, type);
             } else {
                 logger.info("Ignore drop collection request [{}], [{}]. The option has been disabled.", index, type);
             }
+            // After the drop, as the pending requests reported indexed while
+            // it waited for them are gone
+            indexedAttachments.invalidateAll();
+            documentLocations.invalidateAll();
         }
     }
 
     /*
      * Delete children when parent / child is used
      */
-    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent) {
+    private void deleteBulkRequest(String objectId, String index, String type, String routing, String parent,
+            BSONTimestamp oplogTimestamp) {
         if (logger.isTraceEnabled()) {
             logger.trace("bulkDeleteRequest - objectId: {} - index: {} - type: {} - routing: {} - parent: {}", objectId, index, type,
                     routing, parent);
         }
 
-        if (definition.getParentTypes() != null && definition.getParentTypes().contains(type)) {
-            QueryBuilder builder = QueryBuilders.hasParentQuery(type, QueryBuilders.termQuery(MongoDBRiver.MONGODB_ID_FIELD, objectId));
-            SearchResponse response = client.prepareSearch(index).setQuery(builder).setRouting(routing)
-                    .addField(MongoDBRiver.MONGODB_ID_FIELD).execute().actionGet();
-            for (SearchHit hit : response.getHits().getHits()) {
-                getBulkProcessor(index, hit.getType()).deleteBulkRequest(hit.getId(), routing, objectId);
+        if (isParentType(type)) {
+            DocumentKey key = new DocumentKey(index, type, routing);
+            Set<String> ids = pendingParents.get(key);
+            if (ids == null) {
+                ids = new HashSet<String>();
+                pendingParents.put(key, ids);
             }
+            ids.add(objectId);
         }
-        getBulkProcessor(index, type).deleteBulkRequest(objectId, routing, parent);
+        bulkProcessor.deleteBulkRequest(index, type, objectId, routing, parent, oplogTimestamp);
+    }
+
+    /*
+     * Delete the children of the parents deleted during the flush window. The
+     * children are resolved with one scrolled search per index / parent type /
+     * routing so all of them are found, not only the first page. The search
+     * does not depend on the parents, which may already be deleted and
+     * refreshed when it runs.
+     */
+    private void deletePendingChildren() {
+        if (pendingParents.isEmpty()) {
+            indexedChildren.clear();
+            return;
+        }
+        int batchSize = Math.max(1, definition.getBulk().getBulkActions());
+        for (Map.Entry<DocumentKey, Set<String>> entry : pendingParents.entrySet()) {
+            DocumentKey key = entry.getKey();
+            List<String> ids = new ArrayList<String>(entry.getValue());
+            for (int from = 0; from < ids.size(); from += batchSize) {
+                List<String> batch = ids.subList(from, Math.min(from + batchSize, ids.size()));
+                deleteChildren(key, batch.toArray(new String[batch.size()]));
+            }
+        }
+        pendingParents.clear();
+        indexedChildren.clear();
+    }
+
+    private void deleteChildren(DocumentKey key, String[] parentIds) {
+        if (logger.isTraceEnabled()) {
+            logger.trace("deleteChildren - index: {} - parent type: {} - routing: {} - parents: {}", key.index, key.type, key.routing,
+                    parentIds.length);
+        }
+        // Match the _parent field of the children rather than the parents, so
+        // they are found even if their parents are already deleted
+        String[] parentUids = new String[parentIds.length];
+        for (int i = 0; i < parentIds.length; i++) {
+            parentUids[i] = key.type + "#" + parentIds[i];
+        }
+        QueryBuilder builder = QueryBuilders.termsQuery("_parent", parentUids);
+        SearchResponse response = client.prepareSearch(key.index).setSearchType(SearchType.SCAN).setScroll(CHILDREN_SCROLL_KEEP_ALIVE)
+                .setQuery(builder).setRouting(key.routing).addField("_parent").setSize(CHILDREN_SCROLL_SIZE).execute().actionGet();
+        try {
+            while (true) {
+                response = client.prepareSearchScroll(response.getScrollId()).setScroll(CHILDREN_SCROLL_KEEP_ALIVE).execute().actionGet();
+                if (response.getHits().getHits().length == 0) {
+                    break;
+                }
+                for (SearchHit hit : response.getHits().getHits()) {
+                    if (indexedChildren.contains(new ChildKey(key.index, hit.getType(), hit.getId()))) {
+                        // Indexed during the same window, its pending
+                        // index request must not be deleted
+                        continue;
+                    }
+                    bulkProcessor.deleteBulkRequest(key.index, hit.getType(), hit.getId(), key.routing, getFieldValue(hit, "_parent"),
+                            null);
+                }
+            }
+        } finally {
+            client.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
+        }
+    }
+
+    private boolean isParentType(String type) {
+        return definition.getParentTypes() != null && definition.getParentTypes().contains(type);
+    }
+
+    /*
+     * Groups the parents by index / type / routing
+     */
+    private static final class DocumentKey {
+        private final String index;
+        private final String type;
+        private final String routing;
+
+        private DocumentKey(String index, String type, String routing) {
+            this.index = index;
+            this.type = type;
+            this.routing = routing;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof DocumentKey)) {
+                return false;
+            }
+            DocumentKey other = (DocumentKey) obj;
+            return index.equals(other.index) && type.equals(other.type) && Indexer.equals(routing, other.routing);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = index.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + (routing == null ? 0 : routing.hashCode());
+            return result;
+        }
+    }
+
+    /*
+     * Identifies the children by index / type / id
+     */
+    private static final class ChildKey {
+        private final String index;
+        private final String type;
+        private final String id;
+
+        private ChildKey(String index, String type, String id) {
+            this.index = index;
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof ChildKey)) {
+                return false;
+            }
+            ChildKey other = (ChildKey) obj;
+            return index.equals(other.index) && type.equals(other.type) && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = index.hashCode();
+            result = 31 * result + type.hashCode();
+            result = 31 * result + id.hashCode();
+            return result;
+        }
+    }
+
+    private static final class DocumentLocation {
+        private final String routing;
+        private final String parent;
+
+        private DocumentLocation(String routing, String parent) {
+            this.routing = routing;
+            this.parent = parent;
+        }
+    }
+
+    private final class Relocation {
+        private final String id;
+        private final String index;
+        private final String type;
+        private final XContentBuilder source;
+        private final String routing;
+        private final String parent;
+        private final BSONTimestamp oplogTimestamp;
+        private final Runnable onIndexed;
+
+        private Relocation(String id, String index, String type, XContentBuilder source, String routing, String parent,
+                BSONTimestamp oplogTimestamp, Runnable onIndexed) {
+            this.id = id;
+            this.index = index;
+            this.type = type;
+            this.source = source;
+            this.routing = routing;
+            this.parent = parent;
+            this.oplogTimestamp = oplogTimestamp;
+            this.onIndexed = onIndexed;
+        }
+
+        // The parent is used as routing when no routing is provided
+        private String getEffectiveRouting() {
+            return routing != null ? routing : parent;
+        }
+
+        private boolean isMovedFrom(String currentParent, String currentRouting) {
+            return !Indexer.equals(currentParent, parent) || !Indexer.equals(currentRouting, getEffectiveRouting());
+        }
+
+        private void update() {
+            bulkProcessor.updateBulkRequest(index, type, id, source, routing, parent, oplogTimestamp, onIndexed);
+        }
+    }
+
+    /*
+     * The md5 and length identify the content of an attachment. The metadata
+     * keys are kept as a partial update cannot remove the keys dropped since.
+     */
+    static final class IndexedAttachment {
+        private final String md5;
+        private final long length;
+        private final Set<String> metadataKeys;
+
+        IndexedAttachment(GridFSFile file) {
+            this.md5 = file.getMD5();
+            this.length = file.getLength();
+            this.metadataKeys = file.getMetaData() == null ? Collections.<String> emptySet() : new HashSet<String>(file.getMetaData()
+                    .keySet());
+        }
+
+        boolean hasSameContent(GridFSFile file) {
+            if (md5 == null || !md5.equals(file.getMD5()) || length != file.getLength()) {
+                return false;
+            }
+            Set<String> keys = file.getMetaData() == null ? Collections.<String> emptySet() : file.getMetaData().keySet();
+            return keys.containsAll(metadataKeys);
+        }
+    }
+
+    /*
+     * Partial updates do not support the external versioning, the attachment
+     * is then always indexed again
+     */
+    private boolean isAttachmentContentUnchanged(DBObject data, String objectId) {
+        if (!(data instanceof GridFSFile) || definition.isExternalVersion()) {
+            return false;
+        }
+        IndexedAttachment indexed = indexedAttachments.getIfPresent(objectId);
+        return indexed != null && indexed.hasSameContent((GridFSFile) data);
+    }
+
+    /*
+     * The attachment is cached once the bulk listener reports it indexed
+     */
+    private Runnable trackIndexedAttachment(DBObject data, final String objectId) {
+        if (!(data instanceof GridFSFile)) {
+            return null;
+        }
+        final IndexedAttachment attachment = new IndexedAttachment((GridFSFile) data);
+        return new Runnable() {
+            @Override
+            public void run() {
+                indexedAttachments.put(objectId, attachment);
+            }
+        };
+    }
+
+    /*
+     * The partial update of an attachment missing from the index is replaced
+     * by a full index of the attachment
+     */
+    private Runnable indexMissingAttachment(final DBObject data, final String objectId, final String index, final String type,
+            final String routing, final String parent, final BSONTimestamp oplogTimestamp) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                indexedAttachments.invalidate(objectId);
+                try {
+                    bulkProcessor.updateBulkRequest(index, type, objectId, build(data, objectId), routing, parent, oplogTimestamp,
+                            trackIndexedAttachment(data, objectId));
+                } catch (IOException e) {
+                    logger.error("Failed to index missing attachment {}", e, objectId);
+                }
+            }
+        };
+    }
+
+    /*
+     * Every child indexed in the window, whether its parent is deleted before
+     * or after it
+     */
+    private void trackIndexedChild(String objectId, String index, String type, String parent) {
+        if (parent != null && objectId != null) {
+            indexedChildren.add(new ChildKey(index, type, objectId));
+        }
+    }
+
+    /*
+     * The index request of an update only overwrites the existing document if
+     * it is routed to the same shard. The parent / routing of the last write
+     * seen in the oplog is used when it is still cached, and the existing
+     * document is deleted when its parent / routing changed. Otherwise the
+     * update is held to be checked with the others of the batch, see
+     * deleteRelocatedDocuments, and true is returned.
+     */
+    private boolean deleteRelocatedDocument(Relocation relocation) {
+        DocumentLocation location = documentLocations.getIfPresent(getLocationKey(relocation.id, relocation.index, relocation.type));
+        if (location != null) {
+            if (relocation.isMovedFrom(location.parent, location.routing)) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Document {} moved from parent: {} - routing: {} to parent: {} - routing: {}", relocation.id,
+                            location.parent, location.routing, relocation.parent, relocation.getEffectiveRouting());
+                }
+                deleteBulkRequest(relocation.id, relocation.index, relocation.type, location.routing, location.parent,
+                        relocation.oplogTimestamp);
+            }
+            return false;
+        }
+        if (relocation.routing == null && relocation.parent == null) {
+            return false;
+        }
+        SimpleEntry<String, String> key = new SimpleEntry<String, String>(relocation.index, relocation.type);
+        Map<String, Relocation> relocations = pendingRelocations.get(key);
+        if (relocations == null) {
+            relocations = new LinkedHashMap<String, Relocation>();
+            pendingRelocations.put(key, relocations);
+        }
+        relocations.put(relocation.id, relocation);
+        return true;
+    }
+
+    private boolean isRelocationPending(String objectId, String index, String type) {
+        Map<String, Relocation> relocations = pendingRelocations.get(new SimpleEntry<String, String>(index, type));
+        return relocations != null && relocations.containsKey(objectId);
+    }
+
+    /*
+     * Look for the copies of the updates held by deleteRelocatedDocument with
+     * one scrolled ids search per index / type, instead of a get and a search
+     * per update. The copies with another parent / routing than the update are
+     * deleted, then the updates are sent: the delete must come first when the
+     * old and the new routing point to the same shard.
+     */
+    private void deleteRelocatedDocuments() {
+        if (pendingRelocations.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<SimpleEntry<String, String>, Map<String, Relocation>> entry : pendingRelocations.entrySet()) {
+            String index = entry.getKey().getKey();
+            String type = entry.getKey().getValue();
+            Map<String, Relocation> relocations = entry.getValue();
+            QueryBuilder builder = QueryBuilders.idsQuery(type).ids(relocations.keySet().toArray(new String[relocations.size()]));
+            SearchResponse response = client.prepareSearch(index).setTypes(type).setSearchType(SearchType.SCAN)
+                    .setScroll(RELOCATIONS_SCROLL_KEEP_ALIVE).setQuery(builder).addFields("_parent", "_routing")
+                    .setSize(RELOCATIONS_SCROLL_SIZE).execute().actionGet();
+            try {
+                while (true) {
+                    response = client.prepareSearchScroll(response.getScrollId()).setScroll(RELOCATIONS_SCROLL_KEEP_ALIVE).execute()
+                            .actionGet();
+                    if (response.getHits().getHits().length == 0) {
+                        break;
+                    }
+                    for (SearchHit hit : response.getHits().getHits()) {
+                        Relocation relocation = relocations.get(hit.getId());
+                        if (relocation == null) {
+                            continue;
+                        }
+                        String currentParent = getFieldValue(hit, "_parent");
+                        String currentRouting = getFieldValue(hit, "_routing");
+                        if (relocation.isMovedFrom(currentParent, currentRouting)) {
+                            if (logger.isDebugEnabled()) {
+                                logger.debug("Document {} moved from parent: {} - routing: {} to parent: {} - routing: {}", hit.getId(),
+                                        currentParent, currentRouting, relocation.parent, relocation.getEffectiveRouting());
+                            }
+                            deleteBulkRequest(hit.getId(), index, type, currentRouting, currentParent, relocation.oplogTimestamp);
+                        }
+                    }
+                }
+            } finally {
+                client.prepareClearScroll().addScrollId(response.getScrollId()).execute().actionGet();
+            }
+            for (Relocation relocation : relocations.values()) {
+                relocation.update();
+            }
+        }
+        pendingRelocations.clear();
+    }
+
+    private void trackDocumentLocation(String objectId, String index, String type, String routing, String parent) {
+        String key = getLocationKey(objectId, index, type);
+        if (routing == null && parent == null) {
+            documentLocations.invalidate(key);
+        } else {
+            documentLocations.put(key, new DocumentLocation(routing != null ? routing : parent, parent));
+        }
+    }
+
+    private static String getLocationKey(String objectId, String index, String type) {
+        return index + '/' + type + '/' + objectId;
+    }
+
+    private String getFieldValue(SearchHit hit, String field) {
+        SearchHitField value = hit.field(field);
+        if (value == null || value.getValue() == null) {
+            return null;
+        }
+        return value.getValue().toString();
+    }
+
+    private static boolean equals(String value1, String value2) {
+        return value1 == null ? value2 == null : value1.equals(value2);
     }
 
     @SuppressWarnings("unchecked")
@@ -295,7 +771,7 @@ class Indexer implements Runnable {
         Operation operation = entry.getOperation();
         String objectId = "";
         if (entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD) != null) {
-            objectId = VersionedIdHelper.versionedIdString(entry.getData().get(MongoDBRiver.MONGODB_ID_FIELD));
+            objectId = entry.getVersionedId().toString();
         }
         if (logger.isDebugEnabled()) {
             logger.debug("applyAdvancedTransformation for id: [{}], operation: [{}]", objectId, operation);
@@ -306,19 +782,14 @@ class Indexer implements Runnable {
                     definition.getMongoCollection());
             entry.getData().put(definition.getIncludeCollection(), definition.getMongoCollection());
         }
-        Map<String, Object> ctx = null;
-        try {
-            ctx = XContentFactory.xContent(XContentType.JSON).createParser("{}").mapAndClose();
-        } catch (Exception e) {
-        }
-
+        Map<String, Object> ctx = new HashMap<String, Object>();
         List<Object> documents = new ArrayList<Object>();
         Map<String, Object> document = new HashMap<String, Object>();
 
         if (hasScript()) {
             if (ctx != null && documents != null) {
 
-                document.put("data", entry.getData().toMap());
+                document.put("data", toMap(entry.getData()));
                 if (!objectId.isEmpty()) {
                     document.put("id", objectId);
                 }
@@ -337,12 +808,14 @@ class Indexer implements Runnable {
                         logger.trace("Context before script executed: {}", ctx);
                     }
                     executableScript.setNextVar("ctx", ctx);
+                    long start = System.nanoTime();
                     executableScript.run();
+                    context.getMetrics().scriptTime.record(System.nanoTime() - start, NANOSECONDS);
                     // we need to unwrap the context object...
                     ctx = (Map<String, Object>) executableScript.unwrap(ctx);
                 } catch (Exception e) {
                     logger.warn("failed to script process {}, ignoring", e, ctx);
-                    MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
+                    MongoDBRiverHelper.setRiverStatusAsync(client, definition.getRiverName(), Status.SCRIPT_IMPORT_FAILED);
                 }
                 if (logger.isTraceEnabled()) {
                     logger.trace("Context after script executed: {}", ctx);
@@ -376,7 +849,8 @@ class Indexer implements Runnable {
                                 continue;
                             }
                             try {
-                                updateBulkRequest(new BasicDBObject(data), objectId, operation, index, type, routing, parent);
+                                updateBulkRequest(toDBObject(data), objectId, operation, index, type, routing, parent,
+                                        lastTimestamp);
                             } catch (IOException ioEx) {
                                 logger.error("Update bulk failed.", ioEx);
                             }
@@ -390,51 +864,37 @@ class Indexer implements Runnable {
     }
 
     private XContentBuilder build(final DBObject data, final String objectId) throws IOException {
-        if (data instanceof GridFSDBFile) {
-            logger.info("Add Attachment: {} to index {} / type {}", objectId, definition.getIndexName(), definition.getTypeName());
-            return MongoDBHelper.serialize((GridFSDBFile) data);
-        } else {
-            Map<String, Object> mapData = this.createObjectMap(data);
-            return XContentFactory.jsonBuilder().map(mapData);
-        }
-    }
-
-    /**
-     * Map a DBObject for indexing
-     * 
-     * @param base
-     * @param mapData
-     */
-    private Map<String, Object> createObjectMap(DBObject base) {
-        Map<String, Object> mapData = new HashMap<String, Object>();
-        for (String key : base.keySet()) {
-            Object forMap = base.get(key);
-            if (forMap instanceof DBRef) {
-                mapData.put(key, this.convertDbRef((DBRef) forMap));
-            } else if (forMap instanceof BasicDBList) {
-                mapData.put(key, ((BasicBSONList) forMap).toArray());
-            } else if (forMap instanceof BasicDBObject) {
-                mapData.put(key, this.createObjectMap((DBObject) forMap));
+        long start = System.nanoTime();
+        try {
+            if (data instanceof GridFSDBFile) {
+                logger.info("Add Attachment: {} to index {} / type {}", objectId, definition.getIndexName(), definition.getTypeName());
+                long maxAttachmentSize = definition.getMaxAttachmentSize() == null ? -1 : definition.getMaxAttachmentSize().bytes();
+                return MongoDBHelper.serialize((GridFSDBFile) data, maxAttachmentSize);
             } else {
-                mapData.put(key, forMap);
+                return serializer.serialize(data);
             }
+        } finally {
+            context.getMetrics().serializationTime.record(System.nanoTime() - start, NANOSECONDS);
         }
-
-        return mapData;
     }
 
     /**
-     * Map a DBRef to a Map for indexing
-     * 
-     * @param ref
-     * @return
+     * Use the document returned by a script as is when it is still a DBObject
      */
-    private Map<String, Object> convertDbRef(DBRef ref) {
-        Map<String, Object> obj = new HashMap<String, Object>();
-        obj.put("id", ref.getId());
-        obj.put("ref", ref.getRef());
+    @SuppressWarnings("unchecked")
+    private DBObject toDBObject(Object document) {
+        if (document instanceof DBObject) {
+            return (DBObject) document;
+        }
+        return new BasicDBObject((Map<String, Object>) document);
+    }
 
-        return obj;
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> toMap(DBObject document) {
+        if (document instanceof Map) {
+            return (Map<String, Object>) document;
+        }
+        return document.toMap();
     }
 
     private boolean hasScript() {
@@ -0,0 +1,124 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Iterator;
+
+import org.corespring.river.mongodb.VersionedIdHelper;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.collect.AbstractIterator;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+/**
+ * Tracks the highest version of the documents with a versioned id, with
+ * latest_version_only. All the versions share one Elasticsearch document,
+ * which must hold the highest version left in MongoDB.
+ */
+class LatestVersions {
+
+    private static final ESLogger logger = ESLoggerFactory.getLogger(LatestVersions.class.getName());
+    private static final int CACHE_SIZE = 10000;
+
+    // Highest version indexed by id
+    private final Cache<Object, Long> versions = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build();
+
+    /**
+     * Whether the version is older than the highest one of the same id,
+     * otherwise it becomes the highest one
+     */
+    boolean isSuperseded(DBObject object, DBCollection collection) {
+        if (!VersionedIdHelper.isVersioned(object)) {
+            return false;
+        }
+        Object id = VersionedIdHelper.getBaseId(object);
+        if (id == null) {
+            return false;
+        }
+        long version = VersionedIdHelper.getVersionNumber(object);
+        Long latestVersion = versions.getIfPresent(id);
+        if (latestVersion == null) {
+            latestVersion = VersionedIdHelper.getLatestVersionNumber(collection, id);
+        }
+        if (version < latestVersion) {
+            logger.trace("Skip version {} of {} superseded by version {}", version, id, latestVersion);
+            return true;
+        }
+        versions.put(id, version);
+        return false;
+    }
+
+    /**
+     * The highest version left once the latest version is deleted, to index
+     * in place of the delete. Null if no version is left, the document is
+     * then deleted.
+     */
+    DBObject getReplacement(DBObject deleted, DBCollection collection, DBObject fields) {
+        if (!VersionedIdHelper.isVersioned(deleted)) {
+            return null;
+        }
+        Object id = VersionedIdHelper.getBaseId(deleted);
+        if (id == null) {
+            return null;
+        }
+        versions.invalidate(id);
+        DBObject replacement = VersionedIdHelper.getLatestVersion(collection, id, fields);
+        if (replacement != null) {
+            long version = VersionedIdHelper.getVersionNumber(replacement);
+            logger.trace("Version {} of {} deleted - index version {}", VersionedIdHelper.getVersionNumber(deleted), id, version);
+            versions.put(id, version);
+        }
+        return replacement;
+    }
+
+    /**
+     * Only the last version of each run of versions of an id, from documents
+     * in _id order. A version lower than one already returned for the same
+     * id, from a run out of order, is skipped without querying MongoDB.
+     */
+    Iterator<DBObject> latestOf(final Iterator<DBObject> documents) {
+        return new AbstractIterator<DBObject>() {
+            private DBObject previous;
+
+            @Override
+            protected DBObject computeNext() {
+                while (documents.hasNext()) {
+                    DBObject object = documents.next();
+                    DBObject last = previous;
+                    previous = object;
+                    if (last != null && !VersionedIdHelper.getBaseId(last).equals(VersionedIdHelper.getBaseId(object)) && track(last)) {
+                        return last;
+                    }
+                }
+                if (previous != null) {
+                    DBObject last = previous;
+                    previous = null;
+                    if (track(last)) {
+                        return last;
+                    }
+                }
+                return endOfData();
+            }
+        };
+    }
+
+    /*
+     * Record the version unless a higher one of the same id is known
+     */
+    private boolean track(DBObject object) {
+        if (!VersionedIdHelper.isVersioned(object)) {
+            return true;
+        }
+        Object id = VersionedIdHelper.getBaseId(object);
+        long version = VersionedIdHelper.getVersionNumber(object);
+        Long latestVersion = versions.getIfPresent(id);
+        if (latestVersion != null && version < latestVersion) {
+            logger.trace("Skip version {} of {} superseded by version {}", version, id, latestVersion);
+            return false;
+        }
+        versions.put(id, version);
+        return true;
+    }
+}
@@ -30,11 +30,14 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 
 import org.bson.types.BSONTimestamp;
+import org.corespring.river.mongodb.StandardsCache;
+import org.corespring.river.mongodb.StandardsConverter;
+import org.corespring.river.mongodb.VersionedId;
 import org.corespring.river.mongodb.VersionedIdHelper;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.ExceptionsHelper;
-import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.block.ClusterBlockException;
 import org.elasticsearch.common.collect.ImmutableMap;
@@ -119,11 +122,11 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
 
     protected volatile List<Thread> tailerThreads = Lists.newArrayList();
     protected volatile Thread indexerThread;
-    protected volatile Thread statusThread;
     protected volatile boolean startInvoked = false;
 
     private Mongo mongo;
     private DB adminDb;
+    private StandardsConverter standardsConverter;
 
     @Inject
     public MongoDBRiver(RiverName riverName, RiverSettings settings, @RiverIndexName String riverIndexName, Client client,
@@ -140,6 +143,7 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                 : new ArrayBlockingQueue<QueueEntry>(definition.getThrottleSize());
 
         this.context = new SharedContext(stream, Status.STOPPED);
+        RiverMetrics.register(riverName.getName(), context.getMetrics());
     }
 
     @Override
@@ -205,6 +209,9 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                 }
             }
 
+            // Shared by all the slurpers of the rivers reading this database
+            standardsConverter = StandardsCache.acquire(definition);
+
             // Tail the oplog
             if (isMongos()) {
                 DBCursor cursor = getConfigDb().getCollection("shards").find();
@@ -216,7 +223,8 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                         if (servers != null) {
                             String replicaName = VersionedIdHelper.versionedIdString(item.get(MONGODB_ID_FIELD));
                             Thread tailerThread = EsExecutors.daemonThreadFactory(settings.globalSettings(),
-                                    "mongodb_river_slurper_" + replicaName).newThread(new Slurper(servers, definition, context, client));
+                                    "mongodb_river_slurper_" + replicaName).newThread(
+                                    new Slurper(servers, definition, context, client, standardsConverter));
                             tailerThreads.add(tailerThread);
                         }
                     }
@@ -226,7 +234,7 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
             } else {
                 logger.trace("Not mongos");
                 Thread tailerThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_slurper").newThread(
-                        new Slurper(definition.getMongoServers(), definition, context, client));
+                        new Slurper(definition.getMongoServers(), definition, context, client, standardsConverter));
                 tailerThreads.add(tailerThread);
             }
 
@@ -237,16 +245,13 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
             indexerThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_indexer").newThread(
                     new Indexer(this, definition, context, client, scriptService));
             indexerThread.start();
-
-            statusThread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "mongodb_river_status").newThread(
-                    new StatusChecker(this, definition, context));
-            statusThread.start();
         } catch (Throwable t) {
             logger.warn("Fail to start river {}", t, riverName.getName());
             MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.START_FAILED);
             this.context.setStatus(Status.START_FAILED);
         } finally {
             startInvoked = true;
+            StatusChecker.register(this, settings.globalSettings());
         }
     }
 
@@ -374,12 +379,18 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
 
     @Override
     public void close() {
+        StatusChecker.unregister(this);
+        RiverMetrics.unregister(riverName.getName(), context.getMetrics());
+        stop();
+    }
+
+    /*
+     * Stop the river threads. The river is started again if its status is set
+     * back to running, until it is closed.
+     */
+    void stop() {
         logger.info("Closing river {}", riverName.getName());
         try {
-            if (statusThread != null) {
-                statusThread.interrupt();
-                statusThread = null;
-            }
             for (Thread thread : tailerThreads) {
                 thread.interrupt();
                 thread = null;
@@ -389,6 +400,10 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
                 indexerThread.interrupt();
                 indexerThread = null;
             }
+            if (standardsConverter != null) {
+                StandardsCache.release(definition);
+                standardsConverter = null;
+            }
             closeMongoClient();
         } catch (Throwable t) {
             logger.error("Fail to close river {}", t, riverName.getName());
@@ -397,6 +412,18 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         }
     }
 
+    String getRiverName() {
+        return definition.getRiverName();
+    }
+
+    Status getStatus() {
+        return context.getStatus();
+    }
+
+    Client getClient() {
+        return client;
+    }
+
     private XContentBuilder getGridFSMapping() throws IOException {
         XContentBuilder mapping = jsonBuilder().startObject().startObject(definition.getTypeName()).startObject("properties")
                 .startObject("content").field("type", "attachment").endObject().startObject("filename").field("type", "string").endObject()
@@ -408,16 +435,20 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     }
 
     /**
-     * Get the latest timestamp for a given namespace.
+     * Get the latest timestamp for a given namespace. The get is realtime, no
+     * refresh is needed.
      */
-    @SuppressWarnings("unchecked")
     public static BSONTimestamp getLastTimestamp(Client client, MongoDBRiverDefinition definition) {
+        return getLastTimestamp(
+                client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(), definition.getMongoOplogNamespace()).get(),
+                definition);
+    }
 
-        client.admin().indices().prepareRefresh(definition.getRiverIndexName()).get();
-
-        GetResponse lastTimestampResponse = client.prepareGet(definition.getRiverIndexName(), definition.getRiverName(),
-                definition.getMongoOplogNamespace()).get();
-
+    /**
+     * The latest timestamp held by the checkpoint document of a namespace
+     */
+    @SuppressWarnings("unchecked")
+    public static BSONTimestamp getLastTimestamp(GetResponse lastTimestampResponse, MongoDBRiverDefinition definition) {
         if (lastTimestampResponse.isExists()) {
             Map<String, Object> mongodbState = (Map<String, Object>) lastTimestampResponse.getSourceAsMap().get(TYPE);
             if (mongodbState != null) {
@@ -439,25 +470,17 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
     }
 
     /**
-     * Adds an index request operation to a bulk request, updating the last
-     * timestamp for a given namespace (ie: host:dbName.collectionName)
-     * 
-     * @param bulk
+     * Index request updating the last timestamp for a given namespace (ie:
+     * host:dbName.collectionName)
      */
-    static void setLastTimestamp(final MongoDBRiverDefinition definition, final BSONTimestamp time, final BulkProcessor bulkProcessor) {
-        try {
-            if (logger.isDebugEnabled()) {
-                logger.debug("setLastTimestamp [{}] [{}] [{}]", definition.getRiverName(), definition.getMongoOplogNamespace(),
-                        JSON.serialize(time));
-            }
-            bulkProcessor.add(indexRequest(definition.getRiverIndexName())
-                    .type(definition.getRiverName())
-                    .id(definition.getMongoOplogNamespace())
-                    .source(jsonBuilder().startObject().startObject(TYPE).field(LAST_TIMESTAMP_FIELD, JSON.serialize(time)).endObject()
-                            .endObject()));
-        } catch (IOException e) {
-            logger.error("error updating last timestamp for namespace {}", definition.getMongoOplogNamespace());
+    static IndexRequest getLastTimestampRequest(final MongoDBRiverDefinition definition, final BSONTimestamp time) throws IOException {
+        if (logger.isDebugEnabled()) {
+            logger.debug("setLastTimestamp [{}] [{}] [{}]", definition.getRiverName(), definition.getMongoOplogNamespace(),
+                    JSON.serialize(time));
         }
+        return indexRequest(definition.getRiverIndexName()).type(definition.getRiverName()).id(definition.getMongoOplogNamespace())
+                .source(jsonBuilder().startObject().startObject(TYPE).field(LAST_TIMESTAMP_FIELD, JSON.serialize(time)).endObject()
+                        .endObject());
     }
 
     public static long getIndexCount(Client client, MongoDBRiverDefinition definition) {
@@ -480,6 +503,7 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         private final Operation operation;
         private final BSONTimestamp oplogTimestamp;
         private final String collection;
+        private VersionedId versionedId;
 
         public QueueEntry(DBObject data, String collection) {
             this(null, Operation.INSERT, data, collection);
@@ -515,6 +539,16 @@ public class MongoDBRiver extends AbstractRiverComponent implements River {
         public String getCollection() {
             return collection;
         }
+
+        /**
+         * The id of the document, parsed once for all the processing steps
+         */
+        public VersionedId getVersionedId() {
+            if (versionedId == null) {
+                versionedId = VersionedId.of(data);
+            }
+            return versionedId;
+        }
     }
 
 }
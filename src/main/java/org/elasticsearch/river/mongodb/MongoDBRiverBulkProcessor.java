@@ -2,81 +2,144 @@ package org.elasticsearch.river.mongodb;
 
 import static org.elasticsearch.client.Requests.deleteRequest;
 import static org.elasticsearch.client.Requests.indexRequest;
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.ActionRequest;
 import org.elasticsearch.action.ActionRequestValidationException;
-import org.elasticsearch.action.admin.cluster.node.info.NodeInfo;
-import org.elasticsearch.action.admin.cluster.node.info.NodesInfoResponse;
-import org.elasticsearch.action.admin.cluster.node.stats.NodeStats;
-import org.elasticsearch.action.admin.cluster.node.stats.NodesStatsResponse;
+import org.elasticsearch.action.UnavailableShardsException;
 import org.elasticsearch.action.admin.indices.mapping.put.PutMappingResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkProcessor.Listener;
 import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.update.UpdateRequest;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.metadata.MappingMetaData;
-import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.collect.ImmutableOpenMap;
 import org.elasticsearch.common.collect.Maps;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
 import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.index.VersionType;
+import org.elasticsearch.indices.IndexMissingException;
+import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
-import org.elasticsearch.threadpool.ThreadPool.Info;
-import org.elasticsearch.threadpool.ThreadPoolStats.Stats;
+
+import com.mongodb.util.JSON;
 
 public class MongoDBRiverBulkProcessor {
 
-    public static final long DEFAULT_BULK_QUEUE_SIZE = 50;
-    public static final Map<String, Boolean> DROP_INDEX = ImmutableMap.of("dropIndex", Boolean.TRUE);
+    private static final long SCHEDULER_TERMINATION_TIMEOUT = 10;
+
     private final ESLogger logger = ESLoggerFactory.getLogger(this.getClass().getName());
     private final MongoDBRiver river;
     private final MongoDBRiverDefinition definition;
     private final Client client;
     private final BulkProcessor bulkProcessor;
-    private final String index;
-    private final String type;
 
-    private final AtomicBoolean flushBulkProcessor = new AtomicBoolean();
-    private final AtomicInteger deletedDocuments = new AtomicInteger();
-    private final AtomicInteger insertedDocuments = new AtomicInteger();
-    private final AtomicInteger updatedDocuments = new AtomicInteger();
+    private final ConcurrentMap<SimpleEntry<String, String>, Statistics> documentStatistics = ConcurrentCollections
+            .newConcurrentMap();
     private final AtomicLong documentCount = new AtomicLong();
-    private final static Semaphore semaphore = new Semaphore(1);
+    // Locks of the indices being dropped, removed once unused
+    private final static Map<String, IndexLock> indexLocks = new HashMap<String, IndexLock>();
+
+    private final BulkConcurrencyController concurrencyController;
+    private final RiverMetrics metrics;
+    // Start time of the in-flight bulk requests
+    private final ConcurrentMap<Long, Long> bulkStartTimes = ConcurrentCollections.newConcurrentMap();
+
+    // Retries and oplog timestamps of the requests sent, keyed by identity
+    private final ConcurrentMap<ActionRequest<?>, Integer> retries = ConcurrentCollections.newConcurrentMap();
+    private final ConcurrentMap<ActionRequest<?>, BSONTimestamp> oplogTimestamps = ConcurrentCollections.newConcurrentMap();
+    // Last request added for each document, a retry of an older one is dropped
+    private final ConcurrentMap<String, ActionRequest<?>> latestRequests = ConcurrentCollections.newConcurrentMap();
+    // Sequence numbers of the requests added and not completed yet, keyed by
+    // identity, guarded by itself
+    private final Map<ActionRequest<?>, Long> pendingRequests = new IdentityHashMap<ActionRequest<?>, Long>();
+    private final TreeSet<Long> pendingSequences = new TreeSet<Long>();
+    // Checkpoints waiting for the completion of the requests added before
+    // them, by the sequence number of the next request
+    private final TreeMap<Long, BSONTimestamp> pendingCheckpoints = new TreeMap<Long, BSONTimestamp>();
+    // Callbacks of the requests indexed, or of the updates of missing
+    // documents
+    private final ConcurrentMap<ActionRequest<?>, Runnable> indexedCallbacks = ConcurrentCollections.newConcurrentMap();
+    private final ConcurrentMap<ActionRequest<?>, Runnable> missingCallbacks = ConcurrentCollections.newConcurrentMap();
+    // Checkpoints sent, reported to the metrics once stored
+    private final ConcurrentMap<ActionRequest<?>, BSONTimestamp> checkpointRequests = ConcurrentCollections.newConcurrentMap();
+    private long sequence;
+    // Set when the import failed, no checkpoint is stored afterwards
+    private boolean failed;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final Random random = new Random();
+    // Start of the current statistics interval
+    private long statisticsBucket = System.currentTimeMillis();
 
-    private final long bulkQueueSize;
-    
     public static class Builder {
 
         private final MongoDBRiver river;
         private final MongoDBRiverDefinition definition;
         private final Client client;
-        private String index;
-        private String type;
 
-        public Builder(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
+        public Builder(MongoDBRiver river, MongoDBRiverDefinition definition, Client client) {
             this.river = river;
             this.definition = definition;
             this.client = client;
-            this.index = index;
-            this.type = type;
         }
 
         public MongoDBRiverBulkProcessor build() {
-            return new MongoDBRiverBulkProcessor(river, definition, client, index, type);
+            return new MongoDBRiverBulkProcessor(river, definition, client, river.context.getMetrics());
+        }
+    }
+
+    /*
+     * Counters of an index / type pair since the last statistics flush
+     */
+    private static class Statistics {
+        private final AtomicLong deletedDocuments = new AtomicLong();
+        private final AtomicLong insertedDocuments = new AtomicLong();
+        private final AtomicLong updatedDocuments = new AtomicLong();
+        private final AtomicLong staleDocuments = new AtomicLong();
+        private final AtomicLong bulks = new AtomicLong();
+        private final AtomicLong duration = new AtomicLong();
+
+        private void reset() {
+            deletedDocuments.set(0);
+            updatedDocuments.set(0);
+            insertedDocuments.set(0);
+            staleDocuments.set(0);
+            bulks.set(0);
+            duration.set(0);
         }
     }
 
@@ -84,175 +147,719 @@ public class MongoDBRiverBulkProcessor {
 
         @Override
         public void beforeBulk(long executionId, BulkRequest request) {
-            checkBulkProcessorAvailability();
+            // Called with the monitor of the bulk processor held, never block
+            concurrencyController.sent();
+            bulkStartTimes.put(executionId, System.currentTimeMillis());
             logger.trace("beforeBulk - new bulk [{}] of items [{}]", executionId, request.numberOfActions());
-            if (flushBulkProcessor.get()) {
-                logger.info("About to flush bulk request index[{}] - type[{}]", index, type);
-                int dropDollectionIndex = findLastDropCollection(request.requests());
-                request.requests().subList(0, dropDollectionIndex + 1).clear();
-                try {
-                    dropRecreateMapping();
-                    deletedDocuments.set(0);
-                    updatedDocuments.set(0);
-                    insertedDocuments.set(0);
-                    flushBulkProcessor.set(false);
-                } catch (Throwable t) {
-                    logger.error("Drop collection operation failed", t);
-                    MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
-                    request.requests().clear();
-                    bulkProcessor.close();
-                    river.close();
-                }
-            }
-        }
-
-        @SuppressWarnings("rawtypes")
-        private int findLastDropCollection(List<ActionRequest> request) {
-            int index = 0;
-            for (int i = 0; i < request.size(); i++) {
-                ActionRequest<?> action = request.get(i);
-                if (action instanceof IndexRequest) {
-                    Map<String, Object> source = ((IndexRequest) action).sourceAsMap();
-                    if (source.equals(DROP_INDEX)) {
-                        index = i;
-                    }
-                }
-            }
-            return index;
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            release(executionId, isRetryable(ExceptionsHelper.unwrapCause(failure)));
             if (failure.getClass().equals(ActionRequestValidationException.class)) {
                 if (logger.isTraceEnabled()) {
                     logger.trace("Ignore ActionRequestValidationException : {}", failure);
                 }
+                for (ActionRequest<?> action : request.requests()) {
+                    complete(action);
+                }
+            } else if (isRetryable(ExceptionsHelper.unwrapCause(failure))) {
+                logger.warn("afterBulk - Bulk request [{}] of [{}] items rejected: {}", executionId, request.numberOfActions(),
+                        failure.getMessage());
+                for (ActionRequest<?> action : request.requests()) {
+                    if (retry(action)) {
+                        continue;
+                    }
+                    if (!definition.isDeadLetter()) {
+                        importFailed(request);
+                        return;
+                    }
+                    failed(action, ExceptionsHelper.detailedMessage(failure));
+                }
             } else {
                 logger.error("afterBulk - Bulk request failed: {} - {} - {}", executionId, request, failure);
-                MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
-                request.requests().clear();
-                bulkProcessor.close();
-                river.close();
+                importFailed(request);
             }
         }
 
         @Override
         public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            release(executionId, isRejected(response));
+            int failures = 0;
             if (response.hasFailures()) {
-                logger.error("Bulk processor failed. {}", response.buildFailureMessage());
-                MongoDBRiverHelper.setRiverStatus(client, definition.getRiverName(), Status.IMPORT_FAILED);
-                request.requests().clear();
-                bulkProcessor.close();
-                river.close();
-            } else {
-                documentCount.addAndGet(response.getItems().length);
-                logStatistics(response.getTookInMillis());
-                deletedDocuments.set(0);
-                updatedDocuments.set(0);
-                insertedDocuments.set(0);
-                if (logger.isTraceEnabled()) {
-                    logger.trace("afterBulk - bulk [{}] success [{} items] [{} ms] total [{}]", executionId, response.getItems().length,
-                            response.getTookInMillis(), documentCount.get());
+                for (BulkItemResponse item : response.getItems()) {
+                    if (!item.isFailed()) {
+                        continue;
+                    }
+                    ActionRequest<?> action = request.requests().get(item.getItemId());
+                    if (isDocumentMissing(action, item) && replaceMissing(action)) {
+                        continue;
+                    }
+                    if (isStaleWrite(action, item)) {
+                        // A more recent version has already been indexed
+                        getStatistics(item.getIndex(), item.getType()).staleDocuments.incrementAndGet();
+                        complete(action);
+                        continue;
+                    }
+                    failures++;
+                    if (isRetryable(item.getFailureMessage()) && retry(action)) {
+                        continue;
+                    }
+                    if (!definition.isDeadLetter()) {
+                        logger.error("Bulk processor failed. {}", response.buildFailureMessage());
+                        importFailed(request);
+                        return;
+                    }
+                    failed(action, item.getFailureMessage());
                 }
             }
+            for (BulkItemResponse item : response.getItems()) {
+                if (!item.isFailed()) {
+                    ActionRequest<?> action = request.requests().get(item.getItemId());
+                    BSONTimestamp checkpoint = checkpointRequests.get(action);
+                    if (checkpoint != null) {
+                        metrics.checkpoint(checkpoint);
+                    }
+                    Runnable callback = indexedCallbacks.get(action);
+                    if (callback != null && !isSuperseded(action)) {
+                        callback.run();
+                    }
+                    complete(action);
+                }
+            }
+            documentCount.addAndGet(response.getItems().length - failures);
+            metrics.indexedDocuments.add(response.getItems().length - failures);
+            metrics.failedDocuments.add(failures);
+            Set<SimpleEntry<String, String>> pairs = new LinkedHashSet<SimpleEntry<String, String>>();
+            for (BulkItemResponse item : response.getItems()) {
+                pairs.add(new SimpleEntry<String, String>(item.getIndex(), item.getType()));
+            }
+            for (SimpleEntry<String, String> pair : pairs) {
+                Statistics counters = getStatistics(pair.getKey(), pair.getValue());
+                counters.bulks.incrementAndGet();
+                counters.duration.addAndGet(response.getTookInMillis());
+            }
+            if (logger.isTraceEnabled()) {
+                logger.trace("afterBulk - bulk [{}] success [{} items] failures [{} items] [{} ms] total [{}]", executionId,
+                        response.getItems().length - failures, failures, response.getTookInMillis(), documentCount.get());
+            }
         }
     };
 
-    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, String index, String type) {
+    /*
+     * All the index / type pairs of a river share the same bulk processor, so
+     * concurrent_requests is the in-flight limit of the whole river.
+     */
+    MongoDBRiverBulkProcessor(MongoDBRiver river, MongoDBRiverDefinition definition, Client client, RiverMetrics metrics) {
         this.river = river;
         this.bulkProcessor = BulkProcessor.builder(client, listener).setBulkActions(definition.getBulk().getBulkActions())
                 .setConcurrentRequests(definition.getBulk().getConcurrentRequests())
                 .setFlushInterval(definition.getBulk().getFlushInterval()).setBulkSize(definition.getBulk().getBulkSize()).build();
         this.definition = definition;
         this.client = client;
-        this.index = index;
-        this.type = type;
-        this.bulkQueueSize = getBulkQueueSize();
+        this.concurrencyController = new BulkConcurrencyController(definition.getBulk().getConcurrentRequests());
+        this.metrics = metrics;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, EsExecutors.daemonThreadFactory(definition.getRiverName() + "-bulk"));
+        // Nothing scheduled can be sent once the bulk processor is closed
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        if (definition.isStoreStatistics()) {
+            long interval = definition.getStatisticsInterval().millis();
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flushStatistics();
+                    } catch (Throwable t) {
+                        logger.warn("Failed to flush statistics", t);
+                    }
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
-    public void dropIndex() {
-        addBulkRequest(null, DROP_INDEX, null, null);
-        flushBulkProcessor.set(true);
+    /*
+     * The bulk processor sends its last bulk before the scheduler is stopped,
+     * and the statistics are flushed once the periodic flush has returned.
+     */
+    public void close() {
+        bulkProcessor.close();
+        scheduler.shutdown();
+        try {
+            if (!scheduler.awaitTermination(SCHEDULER_TERMINATION_TIMEOUT, TimeUnit.SECONDS)) {
+                logger.warn("Bulk scheduler of river {} did not terminate in {} seconds", definition.getRiverName(),
+                        SCHEDULER_TERMINATION_TIMEOUT);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (definition.isStoreStatistics()) {
+            flushStatistics();
+        }
     }
 
-    public void addBulkRequest(String id, Map<?, ?> source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
-        insertedDocuments.incrementAndGet();
+    /*
+     * The drop collection is a barrier: the pending requests, including the
+     * scheduled retries and the dead letters, are sent and completed before
+     * the mapping is dropped, and the next requests are only added once it has
+     * been recreated. The last partial bulk is sent by the flush interval.
+     */
+    public void dropIndex(String index, String type) {
+        logger.info("About to flush bulk request index[{}] - type[{}]", index, type);
+        try {
+            awaitPendingRequests();
+            dropRecreateMapping(index, type);
+            getStatistics(index, type).reset();
+        } catch (InterruptedException e) {
+            logger.warn("Drop collection index[{}] - type[{}] interrupted", index, type);
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            logger.error("Drop collection operation failed", t);
+            MongoDBRiverHelper.setRiverStatusAsync(client, definition.getRiverName(), Status.IMPORT_FAILED);
+            bulkProcessor.close();
+            river.close();
+        }
     }
 
-    public void addBulkRequest(String id, XContentBuilder source, String routing, String parent) {
-        bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
-        insertedDocuments.incrementAndGet();
+    public void addBulkRequest(String index, String type, String id, XContentBuilder source, String routing, String parent,
+            BSONTimestamp oplogTimestamp) {
+        addBulkRequest(index, type, id, source, routing, parent, oplogTimestamp, null);
     }
 
-    // public void updateBulkRequest(String id, XContentBuilder source, String
-    // routing, String parent) {
-    // deleteBulkRequest(id, routing, parent);
-    // bulkProcessor.add(indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent));
-    // updatedDocuments.incrementAndGet();
-    // }
+    /**
+     * @param onIndexed
+     *            run from the bulk listener once the document is indexed,
+     *            unless a later request for the same document has been added
+     */
+    public void addBulkRequest(String index, String type, String id, XContentBuilder source, String routing, String parent,
+            BSONTimestamp oplogTimestamp, Runnable onIndexed) {
+        IndexRequest request = indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent);
+        if (isExternalVersion(oplogTimestamp)) {
+            request.version(getExternalVersion(oplogTimestamp)).versionType(VersionType.EXTERNAL);
+        }
+        add(request, oplogTimestamp, onIndexed);
+        getStatistics(index, type).insertedDocuments.incrementAndGet();
+    }
+
+    public void updateBulkRequest(String index, String type, String id, XContentBuilder source, String routing, String parent,
+            BSONTimestamp oplogTimestamp) {
+        updateBulkRequest(index, type, id, source, routing, parent, oplogTimestamp, null);
+    }
 
-    public void deleteBulkRequest(String id, String routing, String parent) {
+    /*
+     * An index request overwrites the existing document, no need to delete it
+     * first.
+     */
+    public void updateBulkRequest(String index, String type, String id, XContentBuilder source, String routing, String parent,
+            BSONTimestamp oplogTimestamp, Runnable onIndexed) {
+        IndexRequest request = indexRequest(index).type(type).id(id).source(source).routing(routing).parent(parent);
+        if (isExternalVersion(oplogTimestamp)) {
+            request.version(getExternalVersion(oplogTimestamp)).versionType(VersionType.EXTERNAL);
+        }
+        add(request, oplogTimestamp, onIndexed);
+        getStatistics(index, type).updatedDocuments.incrementAndGet();
+    }
+
+    /**
+     * A partial update only merges the fields of source in the existing
+     * document. It is kept with the internal versioning as the external one
+     * is not supported by updates.
+     *
+     * @param onIndexed
+     *            run from the bulk listener once the document is updated
+     * @param onMissing
+     *            run from the retry scheduler in place of the update when the
+     *            document is missing from the index, to index it in full
+     */
+    public void partialUpdateBulkRequest(String index, String type, String id, XContentBuilder source, String routing, String parent,
+            BSONTimestamp oplogTimestamp, Runnable onIndexed, Runnable onMissing) {
+        UpdateRequest request = new UpdateRequest(index, type, id).doc(source).routing(routing).parent(parent);
+        if (onMissing != null) {
+            missingCallbacks.put(request, onMissing);
+        }
+        add(request, oplogTimestamp, onIndexed);
+        getStatistics(index, type).updatedDocuments.incrementAndGet();
+    }
+
+    public void deleteBulkRequest(String index, String type, String id, String routing, String parent, BSONTimestamp oplogTimestamp) {
         logger.trace("deleteBulkRequest - id: {} - index: {} - type: {} - routing: {} - parent: {}", id, index, type, routing, parent);
-        bulkProcessor.add(deleteRequest(index).type(type).id(id).routing(routing).parent(parent));
-        deletedDocuments.incrementAndGet();
+        DeleteRequest request = deleteRequest(index).type(type).id(id).routing(routing).parent(parent);
+        if (isExternalVersion(oplogTimestamp)) {
+            request.version(getExternalVersion(oplogTimestamp)).versionType(VersionType.EXTERNAL);
+        }
+        add(request, oplogTimestamp);
+        getStatistics(index, type).deletedDocuments.incrementAndGet();
     }
 
-    public BulkProcessor getBulkProcessor() {
-        return bulkProcessor;
+    /*
+     * Entries of the initial import have no oplog timestamp and keep the
+     * internal versioning
+     */
+    private boolean isExternalVersion(BSONTimestamp oplogTimestamp) {
+        return definition.isExternalVersion() && oplogTimestamp != null;
     }
 
-    private void checkBulkProcessorAvailability() {
-        while (!isBulkProcessorAvailable()) {
-            try {
-                if (logger.isInfoEnabled()) {
-                    logger.info("Waiting for bulk queue to empty...");
+    /**
+     * Pack the oplog timestamp (seconds and increment) in a long so that the
+     * versions follow the oplog order
+     */
+    static long getExternalVersion(BSONTimestamp oplogTimestamp) {
+        return ((long) oplogTimestamp.getTime() << 32) | (oplogTimestamp.getInc() & 0xFFFFFFFFL);
+    }
+
+    private boolean isDocumentMissing(ActionRequest<?> request, BulkItemResponse item) {
+        return request instanceof UpdateRequest && item.getFailure() != null && item.getFailure().getStatus() == RestStatus.NOT_FOUND;
+    }
+
+    /*
+     * Run the callback of an update of a missing document from the retry
+     * scheduler, as it adds the requests replacing the update, unless a later
+     * request for the same document has been added since.
+     */
+    private boolean replaceMissing(final ActionRequest<?> request) {
+        final Runnable callback = missingCallbacks.remove(request);
+        if (callback == null) {
+            return false;
+        }
+        try {
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!isSuperseded(request)) {
+                            logger.debug("Document of request {} missing, replace the update", request);
+                            callback.run();
+                        }
+                    } catch (Throwable t) {
+                        logger.error("Failed to replace update of missing document {}", t, request);
+                    } finally {
+                        complete(request);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            logger.warn("Cannot replace request {}, retry scheduler closed", request);
+            forget(request);
+        }
+        return true;
+    }
+
+    /*
+     * A version conflict of a request indexed with the oplog timestamp as
+     * external version
+     */
+    private boolean isStaleWrite(ActionRequest<?> request, BulkItemResponse item) {
+        if (item.getFailure() == null || item.getFailure().getStatus() != RestStatus.CONFLICT) {
+            return false;
+        }
+        if (request instanceof IndexRequest) {
+            return ((IndexRequest) request).versionType() == VersionType.EXTERNAL;
+        } else if (request instanceof DeleteRequest) {
+            return ((DeleteRequest) request).versionType() == VersionType.EXTERNAL;
+        }
+        return false;
+    }
+
+    /*
+     * The oplog timestamp is only needed to report the failure in the dead
+     * letter index
+     */
+    private void add(ActionRequest<?> request, BSONTimestamp oplogTimestamp) {
+        add(request, oplogTimestamp, null);
+    }
+
+    private void add(ActionRequest<?> request, BSONTimestamp oplogTimestamp, Runnable onIndexed) {
+        if (definition.isDeadLetter() && oplogTimestamp != null) {
+            oplogTimestamps.put(request, oplogTimestamp);
+        }
+        if (onIndexed != null) {
+            indexedCallbacks.put(request, onIndexed);
+        }
+        track(request);
+        awaitCapacity();
+        bulkProcessor.add(request);
+    }
+
+    /*
+     * Throttle the indexer before it adds a request, outside of the bulk
+     * processor. Once interrupted the request is added without waiting, so
+     * that the river can stop.
+     */
+    private void awaitCapacity() {
+        try {
+            concurrencyController.awaitCapacity();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void track(ActionRequest<?> request) {
+        String key = getKey(request);
+        if (key != null) {
+            latestRequests.put(key, request);
+        }
+        synchronized (pendingRequests) {
+            long number = sequence++;
+            pendingRequests.put(request, number);
+            pendingSequences.add(number);
+        }
+    }
+
+    /*
+     * Block until all the requests added have completed
+     */
+    private void awaitPendingRequests() throws InterruptedException {
+        synchronized (pendingRequests) {
+            while (!pendingRequests.isEmpty()) {
+                pendingRequests.wait();
+            }
+        }
+    }
+
+    /**
+     * Store the oplog timestamp once all the requests added so far have
+     * completed, so that the river never resumes after a request still being
+     * retried
+     */
+    public void checkpoint(BSONTimestamp oplogTimestamp) {
+        synchronized (pendingRequests) {
+            if (failed) {
+                return;
+            }
+            pendingCheckpoints.put(sequence, oplogTimestamp);
+        }
+        releaseCheckpoint();
+    }
+
+    /*
+     * Write the most recent checkpoint whose preceding requests have all
+     * completed, from the retry scheduler as the listener must not block on
+     * the bulk processor.
+     */
+    private void releaseCheckpoint() {
+        BSONTimestamp oplogTimestamp = null;
+        synchronized (pendingRequests) {
+            long completed = pendingSequences.isEmpty() ? sequence : pendingSequences.first();
+            SortedMap<Long, BSONTimestamp> ready = pendingCheckpoints.headMap(completed, true);
+            if (!ready.isEmpty()) {
+                oplogTimestamp = ready.get(ready.lastKey());
+                ready.clear();
+            }
+        }
+        if (oplogTimestamp == null) {
+            return;
+        }
+        try {
+            final IndexRequest request = MongoDBRiver.getLastTimestampRequest(definition, oplogTimestamp);
+            latestRequests.put(getKey(request), request);
+            checkpointRequests.put(request, oplogTimestamp);
+            scheduler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bulkProcessor.add(request);
+                    } catch (IllegalStateException e) {
+                        logger.warn("Cannot store checkpoint {}, bulk processor closed", request);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            logger.error("error updating last timestamp for namespace {}", definition.getMongoOplogNamespace());
+        } catch (RejectedExecutionException e) {
+            logger.warn("Cannot store checkpoint {}, retry scheduler closed", oplogTimestamp);
+        }
+    }
+
+    /*
+     * Index, type and id of the document written by the request, null for the
+     * requests without id
+     */
+    private static String getKey(ActionRequest<?> request) {
+        String index = null, type = null, id = null;
+        if (request instanceof IndexRequest) {
+            IndexRequest indexRequest = (IndexRequest) request;
+            index = indexRequest.index();
+            type = indexRequest.type();
+            id = indexRequest.id();
+        } else if (request instanceof UpdateRequest) {
+            UpdateRequest updateRequest = (UpdateRequest) request;
+            index = updateRequest.index();
+            type = updateRequest.type();
+            id = updateRequest.id();
+        } else if (request instanceof DeleteRequest) {
+            DeleteRequest deleteRequest = (DeleteRequest) request;
+            index = deleteRequest.index();
+            type = deleteRequest.type();
+            id = deleteRequest.id();
+        }
+        return id == null ? null : index + '/' + type + '/' + id;
+    }
+
+    /*
+     * A later request for the same document makes the retry useless, and
+     * would be overwritten by it.
+     */
+    private boolean isSuperseded(ActionRequest<?> request) {
+        String key = getKey(request);
+        return key != null && latestRequests.get(key) != request;
+    }
+
+    private boolean isRetryable(Throwable failure) {
+        return failure instanceof EsRejectedExecutionException || failure instanceof ElasticsearchTimeoutException
+                || failure instanceof UnavailableShardsException;
+    }
+
+    private boolean isRetryable(String failureMessage) {
+        if (failureMessage == null) {
+            return false;
+        }
+        return failureMessage.contains(EsRejectedExecutionException.class.getSimpleName())
+                || failureMessage.contains(UnavailableShardsException.class.getSimpleName()) || failureMessage.contains("TimeoutException");
+    }
+
+    /*
+     * Send the request again after an exponential backoff with jitter, from
+     * the retry scheduler as the listener must not block on the bulk
+     * processor.
+     */
+    private boolean retry(final ActionRequest<?> request) {
+        if (isSuperseded(request)) {
+            logger.debug("Drop retry of request {}, superseded by a later request", request);
+            complete(request);
+            return true;
+        }
+        Integer attempts = retries.get(request);
+        int attempt = attempts == null ? 1 : attempts + 1;
+        if (attempt > definition.getBulk().getMaxRetries()) {
+            retries.remove(request);
+            return false;
+        }
+        retries.put(request, attempt);
+        long backoff = definition.getBulk().getRetryBackoff().millis() << Math.min(attempt - 1, 16);
+        long delay = backoff / 2 + (long) (random.nextDouble() * backoff);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Retry request {} - attempt {} in {} ms", request, attempt, delay);
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (isSuperseded(request)) {
+                        logger.debug("Drop retry of request {}, superseded by a later request", request);
+                        complete(request);
+                        return;
+                    }
+                    try {
+                        bulkProcessor.add(request);
+                    } catch (IllegalStateException e) {
+                        logger.warn("Cannot retry request {}, bulk processor closed", request);
+                        forget(request);
+                    }
                 }
-                Thread.sleep(2000);
-            } catch (InterruptedException e) {
-                logger.warn("checkIndexStatistics interrupted", e);
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Cannot retry request {}, retry scheduler closed", request);
+            forget(request);
+        }
+        return true;
+    }
+
+    /*
+     * Without dead letter index any failure stops the river, without storing
+     * the checkpoints still waiting for the failed requests
+     */
+    private void importFailed(BulkRequest request) {
+        MongoDBRiverHelper.setRiverStatusAsync(client, definition.getRiverName(), Status.IMPORT_FAILED);
+        synchronized (pendingRequests) {
+            failed = true;
+            pendingCheckpoints.clear();
+        }
+        for (ActionRequest<?> action : request.requests()) {
+            forget(action);
+        }
+        request.requests().clear();
+        bulkProcessor.close();
+        river.close();
+    }
+
+    /*
+     * The request has been indexed, dropped or routed to the dead letter index
+     */
+    private void complete(ActionRequest<?> request) {
+        forget(request);
+        releaseCheckpoint();
+    }
+
+    private void forget(ActionRequest<?> request) {
+        retries.remove(request);
+        oplogTimestamps.remove(request);
+        checkpointRequests.remove(request);
+        indexedCallbacks.remove(request);
+        missingCallbacks.remove(request);
+        String key = getKey(request);
+        if (key != null) {
+            latestRequests.remove(key, request);
+        }
+        synchronized (pendingRequests) {
+            Long number = pendingRequests.remove(request);
+            if (number != null) {
+                pendingSequences.remove(number);
+                pendingRequests.notifyAll();
             }
         }
     }
 
-    private long getBulkQueueSize() {
-        NodesInfoResponse response = client.admin().cluster().prepareNodesInfo().setThreadPool(true).get();
-        for (NodeInfo node : response.getNodes()) {
-            Iterator<Info> iterator = node.getThreadPool().iterator();
-            while (iterator.hasNext()) {
-                Info info = iterator.next();
-                if ("bulk".equals(info.getName())) {
-                    return info.getQueueSize().getSingles();
+    /*
+     * Route a permanently failing request to the dead letter index with the
+     * error and its oplog timestamp. The dead letter is pending in place of
+     * the failed request.
+     */
+    private void failed(final ActionRequest<?> request, final String failureMessage) {
+        BSONTimestamp oplogTimestamp = oplogTimestamps.get(request);
+        try {
+            XContentBuilder builder = jsonBuilder().startObject();
+            if (request instanceof IndexRequest) {
+                IndexRequest indexRequest = (IndexRequest) request;
+                if (definition.getDeadLetterIndexName().equals(indexRequest.index())) {
+                    logger.error("Cannot write failure to dead letter index {} - {}", indexRequest.index(), failureMessage);
+                    return;
                 }
+                builder.field("operation", "index").field("index", indexRequest.index()).field("type", indexRequest.type())
+                        .field("id", indexRequest.id()).field("routing", indexRequest.routing()).field("parent", indexRequest.parent());
+                builder.field("source", XContentHelper.convertToJson(indexRequest.source(), false));
+            } else if (request instanceof UpdateRequest) {
+                UpdateRequest updateRequest = (UpdateRequest) request;
+                builder.field("operation", "update").field("index", updateRequest.index()).field("type", updateRequest.type())
+                        .field("id", updateRequest.id()).field("routing", updateRequest.routing());
+                builder.field("source", XContentHelper.convertToJson(updateRequest.doc().source(), false));
+            } else if (request instanceof DeleteRequest) {
+                DeleteRequest deleteRequest = (DeleteRequest) request;
+                builder.field("operation", "delete").field("index", deleteRequest.index()).field("type", deleteRequest.type())
+                        .field("id", deleteRequest.id()).field("routing", deleteRequest.routing()).field("parent", deleteRequest.parent());
+            }
+            builder.field("error", failureMessage);
+            if (oplogTimestamp != null) {
+                builder.field(MongoDBRiver.OPLOG_TIMESTAMP, JSON.serialize(oplogTimestamp));
+            }
+            builder.field("date", new Date());
+            builder.endObject();
+            final IndexRequest deadLetter = indexRequest(definition.getDeadLetterIndexName()).type(definition.getDeadLetterTypeName())
+                    .source(builder);
+            track(deadLetter);
+            try {
+                scheduler.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            bulkProcessor.add(deadLetter);
+                        } catch (IllegalStateException e) {
+                            logger.error("Cannot write dead letter, bulk processor closed - {}", failureMessage);
+                            forget(deadLetter);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.error("Cannot write dead letter, retry scheduler closed - {}", failureMessage);
+                forget(deadLetter);
+            }
+        } catch (Exception e) {
+            logger.error("Failed to write dead letter for request {} - {}", e, request, failureMessage);
+        } finally {
+            complete(request);
+        }
+    }
+
+    private Statistics getStatistics(String index, String type) {
+        SimpleEntry<String, String> pair = new SimpleEntry<String, String>(index, type);
+        Statistics counters = documentStatistics.get(pair);
+        if (counters == null) {
+            Statistics previous = documentStatistics.putIfAbsent(pair, counters = new Statistics());
+            if (previous != null) {
+                counters = previous;
             }
         }
-        return DEFAULT_BULK_QUEUE_SIZE;
-    }
-    private boolean isBulkProcessorAvailable() {
-        NodesStatsResponse response = client.admin().cluster().prepareNodesStats().setThreadPool(true).get();
-        for (NodeStats nodeStats : response.getNodes()) {
-            Iterator<Stats> iterator = nodeStats.getThreadPool().iterator();
-            while (iterator.hasNext()) {
-                Stats stats = iterator.next();
-                if ("bulk".equals(stats.getName())) {
-                    int queue = stats.getQueue();
-                    logger.trace("bulkQueueSize [{}] - queue [{}] - availability [{}]", bulkQueueSize, queue, 1 - (queue / bulkQueueSize));
-                    return 1 - (queue / bulkQueueSize) > 0.1;
+        return counters;
+    }
+
+    public BulkProcessor getBulkProcessor() {
+        return bulkProcessor;
+    }
+
+    private void release(long executionId, boolean rejected) {
+        Long start = bulkStartTimes.remove(executionId);
+        long latency = start != null ? System.currentTimeMillis() - start : 0;
+        concurrencyController.release(latency, rejected);
+        metrics.bulkLatency.record(latency, TimeUnit.MILLISECONDS);
+        if (rejected) {
+            metrics.bulkRejections.increment();
+        }
+        if (logger.isTraceEnabled()) {
+            logger.trace("Bulk [{}] took [{} ms] - rejected [{}] - concurrency limit [{}]", executionId, latency, rejected,
+                    concurrencyController.getLimit());
+        }
+    }
+
+    private boolean isRejected(BulkResponse response) {
+        if (response.hasFailures()) {
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed() && isRetryable(item.getFailureMessage())) {
+                    return true;
                 }
             }
         }
-        return true;
+        return false;
     }
 
-    private void dropRecreateMapping() throws IOException, InterruptedException {
+    /*
+     * Drops of the same index are serialized across the rivers of the node,
+     * drops of different indices run concurrently
+     */
+    private static class IndexLock {
+        private final Semaphore semaphore = new Semaphore(1);
+        // Threads holding or waiting for the lock, guarded by indexLocks
+        private int users;
+    }
+
+    private static IndexLock acquireIndexLock(String index) throws InterruptedException {
+        IndexLock lock;
+        synchronized (indexLocks) {
+            lock = indexLocks.get(index);
+            if (lock == null) {
+                lock = new IndexLock();
+                indexLocks.put(index, lock);
+            }
+            lock.users++;
+        }
+        try {
+            lock.semaphore.acquire();
+        } catch (InterruptedException e) {
+            removeIndexLockUser(index, lock);
+            throw e;
+        }
+        return lock;
+    }
+
+    private static void releaseIndexLock(String index, IndexLock lock) {
+        lock.semaphore.release();
+        removeIndexLockUser(index, lock);
+    }
+
+    private static void removeIndexLockUser(String index, IndexLock lock) {
+        synchronized (indexLocks) {
+            if (--lock.users == 0) {
+                indexLocks.remove(index);
+            }
+        }
+    }
+
+    private void dropRecreateMapping(String index, String type) throws IOException, InterruptedException {
+        IndexLock lock = acquireIndexLock(index);
         try {
-            semaphore.acquire();
             logger.trace("dropRecreateMapping index[{}] - type[{}]", index, type);
-            client.admin().indices().prepareRefresh(index).get();
-            ImmutableOpenMap<String, MappingMetaData> mappings = client.admin().cluster().prepareState().get().getState().getMetaData()
-                    .index(index).mappings();
-            logger.trace("mappings contains type {}: {}", type, mappings.containsKey(type));
-            if (mappings.containsKey(type)) {
+            ImmutableOpenMap<String, MappingMetaData> mappings = client.admin().indices().prepareGetMappings(index).setTypes(type).get()
+                    .getMappings().get(index);
+            boolean exists = mappings != null && mappings.containsKey(type);
+            logger.trace("mappings contains type {}: {}", type, exists);
+            if (exists) {
                 /*
                  * Issue #105 - Mapping changing from custom mapping to dynamic
                  * when drop_collection = true Should capture the existing
@@ -274,28 +881,66 @@ public class MongoDBRiverBulkProcessor {
             } else {
                 logger.info("type[{}] does not exist in index[{}]. No need to remove mapping.", index, type);
             }
+        } catch (IndexMissingException e) {
+            logger.info("index[{}] does not exist. No need to remove mapping.", index);
         } finally {
-            semaphore.release();
+            releaseIndexLock(index, lock);
         }
     }
 
-    private void logStatistics(long duration) {
-        if (definition.isStoreStatistics()) {
-            long totalDocuments = deletedDocuments.get() + insertedDocuments.get();
-            logger.debug("Indexed {} documents, {} insertions, {} updates, {} deletions", totalDocuments, insertedDocuments.get(),
-                    updatedDocuments.get(), deletedDocuments.get());
+    /*
+     * Write one rollup document per index / type pair for the elapsed interval,
+     * without waiting for the response
+     */
+    private synchronized void flushStatistics() {
+        long bucket = statisticsBucket;
+        statisticsBucket = System.currentTimeMillis();
+        BulkRequestBuilder bulkRequest = client.prepareBulk();
+        for (Map.Entry<SimpleEntry<String, String>, Statistics> entry : documentStatistics.entrySet()) {
+            Statistics counters = entry.getValue();
+            long insertedDocuments = counters.insertedDocuments.getAndSet(0);
+            long updatedDocuments = counters.updatedDocuments.getAndSet(0);
+            long deletedDocuments = counters.deletedDocuments.getAndSet(0);
+            long staleDocuments = counters.staleDocuments.getAndSet(0);
+            long bulks = counters.bulks.getAndSet(0);
+            long duration = counters.duration.getAndSet(0);
+            long totalDocuments = deletedDocuments + insertedDocuments + updatedDocuments;
+            if (bulks == 0 && totalDocuments == 0) {
+                continue;
+            }
+            logger.debug("Indexed {} documents, {} insertions, {} updates, {} deletions", totalDocuments, insertedDocuments,
+                    updatedDocuments, deletedDocuments);
             Map<String, Object> source = new HashMap<String, Object>();
             Map<String, Object> statistics = Maps.newHashMap();
             statistics.put("duration", duration);
-            statistics.put("date", new Date());
-            statistics.put("index", index);
-            statistics.put("type", type);
-            statistics.put("documents.inserted", insertedDocuments.get());
-            statistics.put("documents.updated", updatedDocuments.get());
-            statistics.put("documents.deleted", deletedDocuments.get());
+            statistics.put("date", new Date(bucket));
+            statistics.put("interval", statisticsBucket - bucket);
+            statistics.put("index", entry.getKey().getKey());
+            statistics.put("type", entry.getKey().getValue());
+            statistics.put("bulks", bulks);
+            statistics.put("documents.inserted", insertedDocuments);
+            statistics.put("documents.updated", updatedDocuments);
+            statistics.put("documents.deleted", deletedDocuments);
+            statistics.put("documents.stale", staleDocuments);
             statistics.put("documents.total", documentCount.get());
             source.put("statistics", statistics);
-            client.prepareIndex(definition.getStatisticsIndexName(), definition.getStatisticsTypeName()).setSource(source).get();
+            bulkRequest.add(indexRequest(definition.getStatisticsIndexName()).type(definition.getStatisticsTypeName()).source(source));
         }
+        if (bulkRequest.numberOfActions() == 0) {
+            return;
+        }
+        bulkRequest.execute(new ActionListener<BulkResponse>() {
+            @Override
+            public void onResponse(BulkResponse response) {
+                if (response.hasFailures()) {
+                    logger.warn("Failed to store statistics. {}", response.buildFailureMessage());
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable e) {
+                logger.warn("Failed to store statistics", e);
+            }
+        });
     }
 }
@@ -27,6 +27,7 @@ import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.river.RiverSettings;
 import org.elasticsearch.script.ExecutableScript;
@@ -50,6 +51,11 @@ public class MongoDBRiverDefinition {
     public final static int DEFAULT_BULK_ACTIONS = 1000;
     public final static TimeValue DEFAULT_FLUSH_INTERVAL = TimeValue.timeValueMillis(10);
     public final static ByteSizeValue DEFAULT_BULK_SIZE = new ByteSizeValue(5, ByteSizeUnit.MB);
+    public final static int DEFAULT_MAX_RETRIES = 3;
+    public final static TimeValue DEFAULT_RETRY_BACKOFF = TimeValue.timeValueMillis(100);
+    public final static TimeValue DEFAULT_STATISTICS_INTERVAL = TimeValue.timeValueSeconds(10);
+    public final static int DEFAULT_ENRICHMENT_CACHE_SIZE = 10000;
+    public final static TimeValue DEFAULT_ENRICHMENT_CACHE_TTL = TimeValue.timeValueMinutes(5);
 
     // fields
     public final static String DB_FIELD = "db";
@@ -73,6 +79,19 @@ public class MongoDBRiverDefinition {
     public final static String SKIP_INITIAL_IMPORT_FIELD = "skip_initial_import";
     public final static String PARENT_TYPES_FIELD = "parent_types";
     public final static String STORE_STATISTICS_FIELD = "store_statistics";
+    public final static String DEAD_LETTER_FIELD = "dead_letter";
+    public final static String EXTERNAL_VERSION_FIELD = "external_version";
+    public final static String REINDEX_ON_STANDARDS_CHANGE_FIELD = "reindex_on_standards_change";
+    public final static String LATEST_VERSION_ONLY_FIELD = "latest_version_only";
+    public final static String MAX_ATTACHMENT_SIZE_FIELD = "max_attachment_size";
+    public final static String ENRICHMENTS_FIELD = "enrichments";
+    public final static String ENRICHMENT_FIELD_FIELD = "field";
+    public final static String KEY_FIELD = "key";
+    public final static String FIELDS_FIELD = "fields";
+    public final static String CACHE_SIZE_FIELD = "cache_size";
+    public final static String CACHE_TTL_FIELD = "cache_ttl";
+    public final static String PRELOAD_FIELD = "preload";
+    public final static String INTERVAL_FIELD = "interval";
     public final static String IMPORT_ALL_COLLECTIONS_FIELD = "import_all_collections";
     public final static String DISABLE_INDEX_REFRESH_FIELD = "disable_index_refresh";
     public final static String FILTER_FIELD = "filter";
@@ -89,6 +108,7 @@ public class MongoDBRiverDefinition {
     public final static String LOCAL_DB_FIELD = "local";
     public final static String ADMIN_DB_FIELD = "admin";
     public final static String THROTTLE_SIZE_FIELD = "throttle_size";
+    public final static String SOURCE_FORMAT_FIELD = "source_format";
     public final static String BULK_SIZE_FIELD = "bulk_size";
     public final static String BULK_TIMEOUT_FIELD = "bulk_timeout";
     public final static String CONCURRENT_BULK_REQUESTS_FIELD = "concurrent_bulk_requests";
@@ -98,6 +118,8 @@ public class MongoDBRiverDefinition {
     public final static String SIZE_FIELD = "size";
     public final static String CONCURRENT_REQUESTS_FIELD = "concurrent_requests";
     public final static String FLUSH_INTERVAL_FIELD = "flush_interval";
+    public final static String MAX_RETRIES_FIELD = "max_retries";
+    public final static String RETRY_BACKOFF_FIELD = "retry_backoff";
 
     // river
     private final String riverName;
@@ -137,12 +159,22 @@ public class MongoDBRiverDefinition {
     private final boolean storeStatistics;
     private final String statisticsIndexName;
     private final String statisticsTypeName;
+    private final TimeValue statisticsInterval;
+    private final boolean deadLetter;
+    private final String deadLetterIndexName;
+    private final String deadLetterTypeName;
+    private final boolean externalVersion;
+    private final boolean reindexOnStandardsChange;
+    private final boolean latestVersionOnly;
+    private final ByteSizeValue maxAttachmentSize;
+    private final List<Enrichment> enrichments;
     private final boolean importAllCollections;
     private final boolean disableIndexRefresh;
     // index
     private final String indexName;
     private final String typeName;
     private final int throttleSize;
+    private final XContentType sourceContentType;
 
     // bulk
     private final Bulk bulk;
@@ -185,6 +217,15 @@ public class MongoDBRiverDefinition {
         private boolean storeStatistics;
         private String statisticsIndexName;
         private String statisticsTypeName;
+        private TimeValue statisticsInterval = DEFAULT_STATISTICS_INTERVAL;
+        private boolean deadLetter;
+        private String deadLetterIndexName;
+        private String deadLetterTypeName;
+        private boolean externalVersion;
+        private boolean reindexOnStandardsChange;
+        private boolean latestVersionOnly;
+        private ByteSizeValue maxAttachmentSize;
+        private List<Enrichment> enrichments = new ArrayList<Enrichment>();
         private boolean importAllCollections;
         private boolean disableIndexRefresh;
 
@@ -192,6 +233,7 @@ public class MongoDBRiverDefinition {
         private String indexName;
         private String typeName;
         private int throttleSize;
+        private XContentType sourceContentType = XContentType.JSON;
 
         private Bulk bulk;
 
@@ -345,6 +387,51 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder statisticsInterval(TimeValue statisticsInterval) {
+            this.statisticsInterval = statisticsInterval;
+            return this;
+        }
+
+        public Builder deadLetter(boolean deadLetter) {
+            this.deadLetter = deadLetter;
+            return this;
+        }
+
+        public Builder deadLetterIndexName(String deadLetterIndexName) {
+            this.deadLetterIndexName = deadLetterIndexName;
+            return this;
+        }
+
+        public Builder deadLetterTypeName(String deadLetterTypeName) {
+            this.deadLetterTypeName = deadLetterTypeName;
+            return this;
+        }
+
+        public Builder externalVersion(boolean externalVersion) {
+            this.externalVersion = externalVersion;
+            return this;
+        }
+
+        public Builder reindexOnStandardsChange(boolean reindexOnStandardsChange) {
+            this.reindexOnStandardsChange = reindexOnStandardsChange;
+            return this;
+        }
+
+        public Builder latestVersionOnly(boolean latestVersionOnly) {
+            this.latestVersionOnly = latestVersionOnly;
+            return this;
+        }
+
+        public Builder maxAttachmentSize(ByteSizeValue maxAttachmentSize) {
+            this.maxAttachmentSize = maxAttachmentSize;
+            return this;
+        }
+
+        public Builder enrichments(List<Enrichment> enrichments) {
+            this.enrichments = enrichments;
+            return this;
+        }
+
         public Builder importAllCollections(boolean importAllCollections) {
             this.importAllCollections = importAllCollections;
             return this;
@@ -375,6 +462,11 @@ public class MongoDBRiverDefinition {
             return this;
         }
 
+        public Builder sourceContentType(XContentType sourceContentType) {
+            this.sourceContentType = sourceContentType;
+            return this;
+        }
+
         public Builder bulk(Bulk bulk) {
             this.bulk = bulk;
             return this;
@@ -391,6 +483,8 @@ public class MongoDBRiverDefinition {
         private final int bulkActions;
         private final ByteSizeValue bulkSize;
         private final TimeValue flushInterval;
+        private final int maxRetries;
+        private final TimeValue retryBackoff;
 
         static class Builder {
 
@@ -398,6 +492,8 @@ public class MongoDBRiverDefinition {
             private int bulkActions = DEFAULT_BULK_ACTIONS;
             private ByteSizeValue bulkSize = DEFAULT_BULK_SIZE;
             private TimeValue flushInterval = DEFAULT_FLUSH_INTERVAL;
+            private int maxRetries = DEFAULT_MAX_RETRIES;
+            private TimeValue retryBackoff = DEFAULT_RETRY_BACKOFF;
 
             public Builder concurrentRequests(int concurrentRequests) {
                 this.concurrentRequests = concurrentRequests;
@@ -419,6 +515,16 @@ public class MongoDBRiverDefinition {
                 return this;
             }
 
+            public Builder maxRetries(int maxRetries) {
+                this.maxRetries = maxRetries;
+                return this;
+            }
+
+            public Builder retryBackoff(TimeValue retryBackoff) {
+                this.retryBackoff = retryBackoff;
+                return this;
+            }
+
             /**
              * Builds a new bulk processor.
              */
@@ -432,6 +538,8 @@ public class MongoDBRiverDefinition {
             this.bulkSize = builder.bulkSize;
             this.concurrentRequests = builder.concurrentRequests;
             this.flushInterval = builder.flushInterval;
+            this.maxRetries = builder.maxRetries;
+            this.retryBackoff = builder.retryBackoff;
         }
 
         public int getConcurrentRequests() {
@@ -450,6 +558,116 @@ public class MongoDBRiverDefinition {
             return flushInterval;
         }
 
+        /**
+         * Number of times an item rejected by the cluster or timed out is sent
+         * again
+         */
+        public int getMaxRetries() {
+            return maxRetries;
+        }
+
+        public TimeValue getRetryBackoff() {
+            return retryBackoff;
+        }
+
+    }
+
+    /**
+     * Replaces the references of a document field, plain keys or DBRefs, with
+     * the matching documents of a lookup collection.
+     */
+    static class Enrichment {
+
+        private final String field;
+        private final String collection;
+        private final String key;
+        private final List<String> fields;
+        private final int cacheSize;
+        private final TimeValue cacheTtl;
+        private final boolean preload;
+
+        Enrichment(String field, String collection, String key, List<String> fields, int cacheSize, boolean preload) {
+            this(field, collection, key, fields, cacheSize, DEFAULT_ENRICHMENT_CACHE_TTL, preload);
+        }
+
+        Enrichment(String field, String collection, String key, List<String> fields, int cacheSize, TimeValue cacheTtl,
+                boolean preload) {
+            Preconditions.checkNotNull(field, "No enrichment field specified");
+            this.field = field;
+            this.collection = collection;
+            this.key = key;
+            this.fields = fields;
+            this.cacheSize = cacheSize;
+            this.cacheTtl = cacheTtl;
+            this.preload = preload;
+        }
+
+        @SuppressWarnings("unchecked")
+        static Enrichment parse(Map<String, Object> settings) {
+            List<String> fields = new ArrayList<String>();
+            if (XContentMapValues.isArray(settings.get(FIELDS_FIELD))) {
+                for (Object field : (List<Object>) settings.get(FIELDS_FIELD)) {
+                    fields.add(field.toString());
+                }
+            }
+            String field = XContentMapValues.nodeStringValue(settings.get(ENRICHMENT_FIELD_FIELD), null);
+            String collection = XContentMapValues.nodeStringValue(settings.get(COLLECTION_FIELD), null);
+            String key = XContentMapValues.nodeStringValue(settings.get(KEY_FIELD), MongoDBRiver.MONGODB_ID_FIELD);
+            int cacheSize = XContentMapValues.nodeIntegerValue(settings.get(CACHE_SIZE_FIELD), DEFAULT_ENRICHMENT_CACHE_SIZE);
+            TimeValue cacheTtl = XContentMapValues.nodeTimeValue(settings.get(CACHE_TTL_FIELD), DEFAULT_ENRICHMENT_CACHE_TTL);
+            boolean preload = XContentMapValues.nodeBooleanValue(settings.get(PRELOAD_FIELD), false);
+            return new Enrichment(field, collection, key, fields, cacheSize, cacheTtl, preload);
+        }
+
+        /**
+         * Top level field holding the references, a single value or an array
+         */
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * Lookup collection, null to only resolve DBRefs in their own
+         * collection
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * Field of the lookup collection matching the references, DBRefs
+         * always match _id
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Fields of the lookup documents to keep, all of them if empty
+         */
+        public List<String> getFields() {
+            return fields;
+        }
+
+        public int getCacheSize() {
+            return cacheSize;
+        }
+
+        /**
+         * How long a looked up document is kept before it is looked up
+         * again, also the reload interval of a preloaded collection
+         */
+        public TimeValue getCacheTtl() {
+            return cacheTtl;
+        }
+
+        /**
+         * Load the whole lookup collection once instead of caching the
+         * documents looked up
+         */
+        public boolean isPreload() {
+            return preload;
+        }
     }
 
     @SuppressWarnings("unchecked")
@@ -554,6 +772,8 @@ public class MongoDBRiverDefinition {
                         builder.statisticsIndexName(XContentMapValues.nodeStringValue(storeStatisticsSettings.get(INDEX_OBJECT), riverName
                                 + "-stats"));
                         builder.statisticsTypeName(XContentMapValues.nodeStringValue(storeStatisticsSettings.get(TYPE_FIELD), "stats"));
+                        builder.statisticsInterval(XContentMapValues.nodeTimeValue(storeStatisticsSettings.get(INTERVAL_FIELD),
+                                DEFAULT_STATISTICS_INTERVAL));
                     } else {
                         builder.storeStatistics(XContentMapValues.nodeBooleanValue(storeStatistics, false));
                         if (builder.storeStatistics) {
@@ -562,6 +782,42 @@ public class MongoDBRiverDefinition {
                         }
                     }
                 }
+                if (mongoOptionsSettings.containsKey(DEAD_LETTER_FIELD)) {
+                    Object deadLetter = mongoOptionsSettings.get(DEAD_LETTER_FIELD);
+                    if (XContentMapValues.isObject(deadLetter)) {
+                        Map<String, Object> deadLetterSettings = (Map<String, Object>) deadLetter;
+                        builder.deadLetter(true);
+                        builder.deadLetterIndexName(XContentMapValues.nodeStringValue(deadLetterSettings.get(INDEX_OBJECT), riverName
+                                + "-failures"));
+                        builder.deadLetterTypeName(XContentMapValues.nodeStringValue(deadLetterSettings.get(TYPE_FIELD), "failure"));
+                    } else {
+                        builder.deadLetter(XContentMapValues.nodeBooleanValue(deadLetter, false));
+                        if (builder.deadLetter) {
+                            builder.deadLetterIndexName(riverName + "-failures");
+                            builder.deadLetterTypeName("failure");
+                        }
+                    }
+                }
+                if (mongoOptionsSettings.containsKey(ENRICHMENTS_FIELD)) {
+                    List<Enrichment> enrichments = new ArrayList<Enrichment>();
+                    Object enrichmentsSettings = mongoOptionsSettings.get(ENRICHMENTS_FIELD);
+                    if (XContentMapValues.isArray(enrichmentsSettings)) {
+                        for (Object enrichment : (List<Object>) enrichmentsSettings) {
+                            if (XContentMapValues.isObject(enrichment)) {
+                                enrichments.add(Enrichment.parse((Map<String, Object>) enrichment));
+                            }
+                        }
+                    }
+                    builder.enrichments(enrichments);
+                }
+                builder.externalVersion(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(EXTERNAL_VERSION_FIELD), false));
+                builder.reindexOnStandardsChange(XContentMapValues.nodeBooleanValue(
+                        mongoOptionsSettings.get(REINDEX_ON_STANDARDS_CHANGE_FIELD), false));
+                builder.latestVersionOnly(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(LATEST_VERSION_ONLY_FIELD), false));
+                if (mongoOptionsSettings.containsKey(MAX_ATTACHMENT_SIZE_FIELD)) {
+                    builder.maxAttachmentSize(ByteSizeValue.parseBytesSizeValue(XContentMapValues.nodeStringValue(
+                            mongoOptionsSettings.get(MAX_ATTACHMENT_SIZE_FIELD), null)));
+                }
                 // builder.storeStatistics(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(STORE_STATISTICS_FIELD),
                 // false));
                 builder.importAllCollections(XContentMapValues.nodeBooleanValue(mongoOptionsSettings.get(IMPORT_ALL_COLLECTIONS_FIELD),
@@ -713,6 +969,8 @@ public class MongoDBRiverDefinition {
             Map<String, Object> indexSettings = (Map<String, Object>) settings.settings().get(INDEX_OBJECT);
             builder.indexName(XContentMapValues.nodeStringValue(indexSettings.get(NAME_FIELD), builder.mongoDb));
             builder.typeName(XContentMapValues.nodeStringValue(indexSettings.get(TYPE_FIELD), builder.mongoDb));
+            builder.sourceContentType(parseSourceContentType(XContentMapValues.nodeStringValue(indexSettings.get(SOURCE_FORMAT_FIELD),
+                    null)));
 
             Bulk.Builder bulkBuilder = new Bulk.Builder();
             if (indexSettings.containsKey(BULK_FIELD)) {
@@ -724,6 +982,8 @@ public class MongoDBRiverDefinition {
                 bulkBuilder.concurrentRequests(XContentMapValues.nodeIntegerValue(bulkSettings.get(CONCURRENT_REQUESTS_FIELD),
                         EsExecutors.boundedNumberOfProcessors(ImmutableSettings.EMPTY)));
                 bulkBuilder.flushInterval(XContentMapValues.nodeTimeValue(bulkSettings.get(FLUSH_INTERVAL_FIELD), DEFAULT_FLUSH_INTERVAL));
+                bulkBuilder.maxRetries(XContentMapValues.nodeIntegerValue(bulkSettings.get(MAX_RETRIES_FIELD), DEFAULT_MAX_RETRIES));
+                bulkBuilder.retryBackoff(XContentMapValues.nodeTimeValue(bulkSettings.get(RETRY_BACKOFF_FIELD), DEFAULT_RETRY_BACKOFF));
                 builder.throttleSize(XContentMapValues.nodeIntegerValue(indexSettings.get(THROTTLE_SIZE_FIELD), bulkActions * 5));
             } else {
                 int bulkActions = XContentMapValues.nodeIntegerValue(indexSettings.get(BULK_SIZE_FIELD), DEFAULT_BULK_ACTIONS);
@@ -743,6 +1003,20 @@ public class MongoDBRiverDefinition {
         return builder.build();
     }
 
+    /*
+     * Only JSON and SMILE are accepted as document source in bulk requests
+     */
+    static XContentType parseSourceContentType(String format) {
+        if (format == null || format.isEmpty() || "json".equalsIgnoreCase(format)) {
+            return XContentType.JSON;
+        }
+        if ("smile".equalsIgnoreCase(format)) {
+            return XContentType.SMILE;
+        }
+        logger.warn("Unsupported source format [{}]. Fallback to json.", format);
+        return XContentType.JSON;
+    }
+
     private static SocketFactory getSSLSocketFactory() {
         SocketFactory sslSocketFactory;
         try {
@@ -854,6 +1128,15 @@ public class MongoDBRiverDefinition {
         this.storeStatistics = builder.storeStatistics;
         this.statisticsIndexName = builder.statisticsIndexName;
         this.statisticsTypeName = builder.statisticsTypeName;
+        this.statisticsInterval = builder.statisticsInterval;
+        this.deadLetter = builder.deadLetter;
+        this.deadLetterIndexName = builder.deadLetterIndexName;
+        this.deadLetterTypeName = builder.deadLetterTypeName;
+        this.externalVersion = builder.externalVersion;
+        this.reindexOnStandardsChange = builder.reindexOnStandardsChange;
+        this.latestVersionOnly = builder.latestVersionOnly;
+        this.maxAttachmentSize = builder.maxAttachmentSize;
+        this.enrichments = builder.enrichments;
         this.importAllCollections = builder.importAllCollections;
         this.disableIndexRefresh = builder.disableIndexRefresh;
 
@@ -861,6 +1144,7 @@ public class MongoDBRiverDefinition {
         this.indexName = builder.indexName;
         this.typeName = builder.typeName;
         this.throttleSize = builder.throttleSize;
+        this.sourceContentType = builder.sourceContentType;
 
         // bulk
         this.bulk = builder.bulk;
@@ -990,6 +1274,58 @@ public class MongoDBRiverDefinition {
         return statisticsTypeName;
     }
 
+    /**
+     * Interval of the statistics rollups written to the statistics index
+     */
+    public TimeValue getStatisticsInterval() {
+        return statisticsInterval;
+    }
+
+    public boolean isDeadLetter() {
+        return deadLetter;
+    }
+
+    public String getDeadLetterIndexName() {
+        return deadLetterIndexName;
+    }
+
+    public String getDeadLetterTypeName() {
+        return deadLetterTypeName;
+    }
+
+    /**
+     * Index with external versioning, the oplog timestamp being the version
+     */
+    public boolean isExternalVersion() {
+        return externalVersion;
+    }
+
+    /**
+     * Reindex the documents referencing a standard when it changes
+     */
+    public boolean isReindexOnStandardsChange() {
+        return reindexOnStandardsChange;
+    }
+
+    /**
+     * Only index the highest version of the documents with a versioned id
+     */
+    public boolean isLatestVersionOnly() {
+        return latestVersionOnly;
+    }
+
+    /**
+     * GridFS files larger than this are indexed without their content, null
+     * if there is no limit
+     */
+    public ByteSizeValue getMaxAttachmentSize() {
+        return maxAttachmentSize;
+    }
+
+    public List<Enrichment> getEnrichments() {
+        return enrichments;
+    }
+
     public boolean isImportAllCollections() {
         return importAllCollections;
     }
@@ -1013,6 +1349,10 @@ public class MongoDBRiverDefinition {
         return throttleSize;
     }
 
+    public XContentType getSourceContentType() {
+        return sourceContentType;
+    }
+
     public String getMongoOplogNamespace() {
         return getMongoDb() + "." + getMongoCollection();
     }
@@ -0,0 +1,137 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+/**
+ * Runtime metrics of a river, exposed by the _river/mongodb/{river}/stats
+ * endpoint of the node running the river. The counters are cumulative since
+ * the river was created on this node, unlike the statistics stored by
+ * store_statistics which are reset at each interval.
+ */
+public class RiverMetrics implements ToXContent {
+
+    // Metrics of the rivers running on this node, by river name
+    private static final ConcurrentMap<String, RiverMetrics> registry = ConcurrentCollections.newConcurrentMap();
+
+    private final SharedContext context;
+
+    final LongAdder oplogDocuments = new LongAdder();
+    final LongAdder importedDocuments = new LongAdder();
+    final LongAdder indexedDocuments = new LongAdder();
+    final LongAdder failedDocuments = new LongAdder();
+    final LongAdder bulkRejections = new LongAdder();
+    final Histogram scriptTime = new Histogram();
+    final Histogram serializationTime = new Histogram();
+    final Histogram bulkLatency = new Histogram();
+    // Oplog timestamp of the last checkpoint stored, in seconds
+    private volatile long checkpointTime = -1;
+
+    RiverMetrics(SharedContext context) {
+        this.context = context;
+    }
+
+    static void register(String riverName, RiverMetrics metrics) {
+        registry.put(riverName, metrics);
+    }
+
+    static void unregister(String riverName, RiverMetrics metrics) {
+        registry.remove(riverName, metrics);
+    }
+
+    /**
+     * The metrics of a river running on this node, null if it is not
+     */
+    public static RiverMetrics get(String riverName) {
+        return registry.get(riverName);
+    }
+
+    void checkpoint(BSONTimestamp timestamp) {
+        checkpointTime = timestamp.getTime();
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("status", context.getStatus());
+        builder.startObject("documents");
+        builder.field("oplog", oplogDocuments.sum());
+        builder.field("initial_import", importedDocuments.sum());
+        builder.field("indexed", indexedDocuments.sum());
+        builder.field("failed", failedDocuments.sum());
+        builder.endObject();
+        builder.field("queue_size", context.getStream().size());
+        builder.field("bulk_rejections", bulkRejections.sum());
+        if (checkpointTime >= 0) {
+            builder.field("checkpoint_age_ms", Math.max(0, System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(checkpointTime)));
+        }
+        scriptTime.toXContent(builder, "script_time");
+        serializationTime.toXContent(builder, "serialization_time");
+        bulkLatency.toXContent(builder, "bulk_latency");
+        return builder;
+    }
+
+    /**
+     * Latencies in microseconds, counted in power of two buckets. The
+     * percentiles are the upper bounds of their bucket, within a factor of two
+     * of the exact values.
+     */
+    static class Histogram {
+
+        private final LongAdder[] buckets = new LongAdder[64];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long duration, TimeUnit unit) {
+            long micros = Math.max(0, unit.toMicros(duration));
+            buckets[Math.min(buckets.length - 1, 64 - Long.numberOfLeadingZeros(micros))].increment();
+            count.increment();
+            sum.add(micros);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        long percentile(double percentile) {
+            long[] counts = new long[buckets.length];
+            long total = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+
+        private void toXContent(XContentBuilder builder, String name) throws IOException {
+            long count = count();
+            builder.startObject(name);
+            builder.field("count", count);
+            builder.field("mean_micros", count == 0 ? 0 : sum.sum() / count);
+            builder.field("p50_micros", percentile(50));
+            builder.field("p95_micros", percentile(95));
+            builder.field("p99_micros", percentile(99));
+            builder.endObject();
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.elasticsearch.river.mongodb;
 
+import java.util.TreeMap;
 import java.util.concurrent.BlockingQueue;
 
+import org.bson.types.BSONTimestamp;
 import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
 
 /**
@@ -11,10 +13,14 @@ public class SharedContext {
 
     private BlockingQueue<QueueEntry> stream;
     private Status status;
+    private final RiverMetrics metrics;
+    // Oplog timestamps of the standards changes still being reindexed
+    private final TreeMap<BSONTimestamp, Integer> pendingReindexes = new TreeMap<BSONTimestamp, Integer>();
 
     public SharedContext(BlockingQueue<QueueEntry> stream, Status status) {
         this.stream = stream;
         this.status = status;
+        this.metrics = new RiverMetrics(this);
     }
 
     public BlockingQueue<QueueEntry> getStream() {
@@ -33,4 +39,33 @@ public class SharedContext {
         this.status = status;
     }
 
+    public RiverMetrics getMetrics() {
+        return metrics;
+    }
+
+    public synchronized void reindexStarted(BSONTimestamp timestamp) {
+        Integer count = pendingReindexes.get(timestamp);
+        pendingReindexes.put(timestamp, count == null ? 1 : count + 1);
+    }
+
+    public synchronized void reindexFinished(BSONTimestamp timestamp) {
+        Integer count = pendingReindexes.get(timestamp);
+        if (count == null || count <= 1) {
+            pendingReindexes.remove(timestamp);
+        } else {
+            pendingReindexes.put(timestamp, count - 1);
+        }
+    }
+
+    /**
+     * Keep the checkpoint at the oldest pending reindex, so a restart
+     * replays the standards change instead of skipping the documents left.
+     */
+    public synchronized BSONTimestamp getCheckpoint(BSONTimestamp timestamp) {
+        if (pendingReindexes.isEmpty() || pendingReindexes.firstKey().compareTo(timestamp) >= 0) {
+            return timestamp;
+        }
+        return pendingReindexes.firstKey();
+    }
+
 }
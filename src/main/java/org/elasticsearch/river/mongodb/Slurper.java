@@ -1,15 +1,20 @@
 package org.elasticsearch.river.mongodb;
 
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.bson.BasicBSONObject;
 import org.bson.types.BSONTimestamp;
 import org.bson.types.ObjectId;
+import org.corespring.river.mongodb.Standard;
 import org.corespring.river.mongodb.StandardsConverter;
-import org.corespring.river.mongodb.StandardsDAO;
 import org.corespring.river.mongodb.VersionedIdHelper;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.base.CharMatcher;
@@ -18,7 +23,8 @@ import org.elasticsearch.common.collect.ImmutableMap;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.unit.TimeValue;
-import org.elasticsearch.river.mongodb.util.MongoDBHelper;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.river.mongodb.util.FieldFilter;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
 import com.mongodb.BasicDBObject;
@@ -36,7 +42,6 @@ import com.mongodb.QueryOperators;
 import com.mongodb.ServerAddress;
 import com.mongodb.gridfs.GridFS;
 import com.mongodb.gridfs.GridFSDBFile;
-import com.mongodb.gridfs.GridFSFile;
 
 class Slurper implements Runnable {
 
@@ -52,12 +57,15 @@ class Slurper implements Runnable {
     }
 
     private static final ESLogger logger = ESLoggerFactory.getLogger(Slurper.class.getName());
+    private static final int REINDEX_BATCH_SIZE = 100;
 
     private final MongoDBRiverDefinition definition;
     private final SharedContext context;
     private final BasicDBObject findKeys;
+    private final FieldFilter fieldFilter;
     private final String gridfsOplogNamespace;
     private final String cmdOplogNamespace;
+    private final String standardsOplogNamespace;
     private final ImmutableList<String> oplogOperations = ImmutableList.of(MongoDBRiver.OPLOG_DELETE_OPERATION,
             MongoDBRiver.OPLOG_UPDATE_OPERATION, MongoDBRiver.OPLOG_INSERT_OPERATION, MongoDBRiver.OPLOG_COMMAND_OPERATION);
     private final Client client;
@@ -66,28 +74,27 @@ class Slurper implements Runnable {
     private DB oplogDb;
     private DBCollection oplogCollection;
     private final AtomicLong totalDocuments = new AtomicLong();
-    private final StandardsDAO standardsDAO;
     private final StandardsConverter standardsConverter;
-
-    public Slurper(List<ServerAddress> mongoServers, MongoDBRiverDefinition definition, SharedContext context, Client client) {
+    private final LatestVersions latestVersions = new LatestVersions();
+    // GridFS handles by bucket, creating one ensures the bucket indexes
+    private final Map<String, GridFS> gridFSBuckets = new HashMap<String, GridFS>();
+    // Reindexes the documents of the changed standards off the oplog thread
+    private final ExecutorService reindexExecutor;
+
+    public Slurper(List<ServerAddress> mongoServers, MongoDBRiverDefinition definition, SharedContext context, Client client,
+            StandardsConverter standardsConverter) {
         this.definition = definition;
         this.context = context;
         this.client = client;
         this.mongo = new MongoClient(mongoServers, definition.getMongoClientOptions());
-        this.findKeys = new BasicDBObject();
+        this.findKeys = FieldFilter.projection(definition.getIncludeFields(), definition.getExcludeFields());
+        this.fieldFilter = FieldFilter.compile(definition.getIncludeFields(), definition.getExcludeFields());
         this.gridfsOplogNamespace = definition.getMongoOplogNamespace() + MongoDBRiver.GRIDFS_FILES_SUFFIX;
         this.cmdOplogNamespace = definition.getMongoDb() + "." + MongoDBRiver.OPLOG_NAMESPACE_COMMAND;
-        this.standardsDAO = new StandardsDAO(mongo, definition);
-        this.standardsConverter = new StandardsConverter(standardsDAO);
-        if (definition.getExcludeFields() != null) {
-            for (String key : definition.getExcludeFields()) {
-                findKeys.put(key, 0);
-            }
-        } else if (definition.getIncludeFields() != null) {
-            for (String key : definition.getIncludeFields()) {
-                findKeys.put(key, 1);
-            }
-        }
+        this.standardsOplogNamespace = definition.getMongoDb() + "." + Standard.COLLECTION;
+        this.standardsConverter = standardsConverter;
+        this.reindexExecutor = Executors.newSingleThreadExecutor(EsExecutors.daemonThreadFactory(definition.getRiverName()
+                + "-reindex"));
     }
 
     @Override
@@ -171,6 +178,7 @@ class Slurper implements Runnable {
                 break;
             }
         }
+        reindexExecutor.shutdownNow();
     }
 
     protected boolean riverHasIndexedFromOplog() {
@@ -209,10 +217,18 @@ class Slurper implements Runnable {
                     logger.info("Collection {} - count: {}", collection.getName(), collection.count());
                     long count = 0;
                     cursor = collection.find(getFilterForInitialImport(definition.getMongoCollectionFilter(), lastId));
-                    while (cursor.hasNext()) {
-                        DBObject object = cursor.next();
+                    Iterator<DBObject> documents = cursor;
+                    if (definition.isLatestVersionOnly()) {
+                        // The _id index keeps the versions of an id together,
+                        // without an in-memory sort
+                        cursor.sort(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1));
+                        documents = latestVersions.latestOf(cursor);
+                    }
+                    while (documents.hasNext()) {
+                        DBObject object = documents.next();
                         count++;
-                        if (cursor.hasNext()) {
+                        context.getMetrics().importedDocuments.increment();
+                        if (documents.hasNext()) {
                             lastId = addInsertToStream(null, applyFieldFilter(object), collection.getName());
                         } else {
                             logger.debug("Last entry for initial import - add timestamp: {}", startTimestamp);
@@ -227,7 +243,7 @@ class Slurper implements Runnable {
                     // possible option: Get the object id list from .fs
                     // collection
                     // then call GriDFS.findOne
-                    GridFS grid = new GridFS(mongo.getDB(definition.getMongoDb()), definition.getMongoCollection());
+                    GridFS grid = getGridFS(definition.getMongoCollection());
 
                     cursor = grid.getFileList();
                     while (cursor.hasNext()) {
@@ -235,6 +251,7 @@ class Slurper implements Runnable {
                         if (object instanceof GridFSDBFile) {
                             // This could be problematic for Corespring if we use Grid FS.
                             GridFSDBFile file = grid.findOne(new ObjectId(object.get(MongoDBRiver.MONGODB_ID_FIELD).toString()));
+                            context.getMetrics().importedDocuments.increment();
                             if (cursor.hasNext()) {
                                 lastId = addInsertToStream(null, file);
                             } else {
@@ -334,9 +351,13 @@ class Slurper implements Runnable {
     }
 
     private BSONTimestamp processOplogEntry(final DBObject entry, final BSONTimestamp startTimestamp) throws InterruptedException {
+        if (standardsOplogNamespace.equals(entry.get(MongoDBRiver.OPLOG_NAMESPACE))) {
+            processStandardsOplogEntry(entry, startTimestamp);
+        }
         if (!isValidOplogEntry(entry, startTimestamp)) {
             return startTimestamp;
         }
+        context.getMetrics().oplogDocuments.increment();
         Operation operation = Operation.fromString(entry.get(MongoDBRiver.OPLOG_OPERATION).toString());
         String namespace = entry.get(MongoDBRiver.OPLOG_NAMESPACE).toString();
         String collection = null;
@@ -381,14 +402,26 @@ class Slurper implements Runnable {
             logger.trace("oplog processing item {}", entry);
         }
 
+        DBObject versioned = operation == Operation.UPDATE ? (DBObject) entry.get(MongoDBRiver.OPLOG_UPDATE) : object;
+        if (isSupersededVersion(versioned, collection)) {
+            return oplogTimestamp;
+        }
+        if (operation == Operation.DELETE && definition.isLatestVersionOnly() && collection != null) {
+            // The document is only deleted with its last version
+            DBObject replacement = latestVersions.getReplacement(object, slurpedDb.getCollection(collection), findKeys);
+            if (replacement != null) {
+                addToStream(Operation.UPDATE, oplogTimestamp, applyFieldFilter(replacement), collection);
+                return oplogTimestamp;
+            }
+        }
+
         String objectId = getObjectIdFromOplogEntry(entry);
         if (definition.isMongoGridFS() && namespace.endsWith(MongoDBRiver.GRIDFS_FILES_SUFFIX)
                 && (operation == Operation.INSERT || operation == Operation.UPDATE)) {
             if (objectId == null) {
                 throw new NullPointerException(MongoDBRiver.MONGODB_ID_FIELD);
             }
-            GridFS grid = new GridFS(mongo.getDB(definition.getMongoDb()), collection);
-            GridFSDBFile file = grid.findOne(new ObjectId(objectId));
+            GridFSDBFile file = getGridFS(collection).findOne(new ObjectId(objectId));
             if (file != null) {
                 logger.info("Caught file: {} - {}", file.getId(), file.getFilename());
                 object = file;
@@ -438,6 +471,127 @@ class Slurper implements Runnable {
         }
     }
 
+    /*
+     * Keep the standards cache in sync with the standards collection
+     */
+    private void processStandardsOplogEntry(final DBObject entry, final BSONTimestamp startTimestamp) throws InterruptedException {
+        if (entry.containsField(MongoDBRiver.OPLOG_FROM_MIGRATE) && ((BasicBSONObject) entry).getBoolean(MongoDBRiver.OPLOG_FROM_MIGRATE)) {
+            return;
+        }
+        String operation = (String) entry.get(MongoDBRiver.OPLOG_OPERATION);
+        if (!MongoDBRiver.OPLOG_INSERT_OPERATION.equals(operation) && !MongoDBRiver.OPLOG_UPDATE_OPERATION.equals(operation)
+                && !MongoDBRiver.OPLOG_DELETE_OPERATION.equals(operation)) {
+            return;
+        }
+        DBObject object = (DBObject) entry.get(MongoDBRiver.OPLOG_UPDATE);
+        if (object == null || !object.containsField(MongoDBRiver.MONGODB_ID_FIELD)) {
+            object = (DBObject) entry.get(MongoDBRiver.OPLOG_OBJECT);
+        }
+        Object id = object == null ? null : object.get(MongoDBRiver.MONGODB_ID_FIELD);
+        if (id == null) {
+            return;
+        }
+        Set<String> dotNotations = standardsConverter.refreshStandard(id);
+        logger.debug("Standard [{}] changed - dot notations {}", id, dotNotations);
+
+        BSONTimestamp oplogTimestamp = (BSONTimestamp) entry.get(MongoDBRiver.OPLOG_TIMESTAMP);
+        if (definition.isReindexOnStandardsChange() && (startTimestamp == null || oplogTimestamp.compareTo(startTimestamp) >= 0)) {
+            for (String dotNotation : dotNotations) {
+                reindexStandard(dotNotation, oplogTimestamp);
+            }
+        }
+    }
+
+    /*
+     * Queue an update of the documents referencing the standard
+     */
+    private void reindexStandard(final String dotNotation, final BSONTimestamp oplogTimestamp) {
+        BasicDBObject query = new BasicDBObject(StandardsConverter.ContentKeys.STANDARDS, dotNotation);
+        BasicDBObject filter = definition.getMongoCollectionFilter();
+        if (filter != null) {
+            List<BasicDBObject> values = ImmutableList.of(filter, query);
+            query = new BasicDBObject(QueryOperators.AND, values);
+        }
+        if (definition.isImportAllCollections()) {
+            for (String name : slurpedDb.getCollectionNames()) {
+                if (!name.equals(Standard.COLLECTION) && !name.startsWith("system.")) {
+                    reindexStandard(query, oplogTimestamp, name);
+                }
+            }
+        } else {
+            reindexStandard(query, oplogTimestamp, definition.getMongoCollection());
+        }
+    }
+
+    private void reindexStandard(final DBObject query, final BSONTimestamp oplogTimestamp, final String collection) {
+        context.reindexStarted(oplogTimestamp);
+        reindexExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    int count = reindexDocuments(query, oplogTimestamp, collection);
+                    logger.debug("Reindex {} documents from collection {} - query {}", count, collection, query);
+                } catch (InterruptedException e) {
+                    logger.info("Reindex of collection {} interrupted", collection);
+                    Thread.currentThread().interrupt();
+                } catch (MongoException e) {
+                    logger.error("Failed to reindex collection {} - query {}", e, collection, query);
+                } finally {
+                    context.reindexFinished(oplogTimestamp);
+                }
+            }
+        });
+    }
+
+    /*
+     * Page through the documents by id, so a long reindex neither holds a
+     * cursor open nor blocks the oplog tailing
+     */
+    private int reindexDocuments(final DBObject query, final BSONTimestamp oplogTimestamp, final String collection)
+            throws InterruptedException {
+        DBCollection slurpedCollection = slurpedDb.getCollection(collection);
+        BasicDBObject sort = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, 1);
+        Object lastId = null;
+        int count = 0;
+        while (context.getStatus() == Status.RUNNING) {
+            DBObject page = query;
+            if (lastId != null) {
+                BasicDBObject after = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new BasicDBObject(QueryOperators.GT, lastId));
+                List<DBObject> values = ImmutableList.of(query, after);
+                page = new BasicDBObject(QueryOperators.AND, values);
+            }
+            List<DBObject> documents;
+            DBCursor cursor = slurpedCollection.find(page, findKeys).sort(sort).limit(REINDEX_BATCH_SIZE);
+            try {
+                documents = cursor.toArray();
+            } finally {
+                cursor.close();
+            }
+            for (DBObject document : documents) {
+                if (!isSupersededVersion(document, collection)) {
+                    addToStream(Operation.UPDATE, oplogTimestamp, applyFieldFilter(document), collection);
+                    count++;
+                }
+            }
+            if (documents.size() < REINDEX_BATCH_SIZE) {
+                break;
+            }
+            lastId = documents.get(documents.size() - 1).get(MongoDBRiver.MONGODB_ID_FIELD);
+        }
+        return count;
+    }
+
+    /*
+     * With latest_version_only, skip the changes to a version older than the
+     * highest one of the same id
+     */
+    private boolean isSupersededVersion(final DBObject object, final String collection) {
+        if (!definition.isLatestVersionOnly() || object == null || collection == null) {
+            return false;
+        }
+        return latestVersions.isSuperseded(object, slurpedDb.getCollection(collection));
+    }
+
     private String getCollectionFromNamespace(String namespace) {
         if (namespace.startsWith(definition.getMongoDb()) && CharMatcher.is('.').countIn(namespace) == 1) {
             return namespace.substring(definition.getMongoDb().length() + 1);
@@ -524,18 +678,17 @@ class Slurper implements Runnable {
         return true;
     }
 
-    private DBObject applyFieldFilter(DBObject object) {
-        if (object instanceof GridFSFile) {
-            GridFSFile file = (GridFSFile) object;
-            DBObject metadata = file.getMetaData();
-            if (metadata != null) {
-                file.setMetaData(applyFieldFilter(metadata));
-            }
-        } else {
-            object = MongoDBHelper.applyExcludeFields(object, definition.getExcludeFields());
-            object = MongoDBHelper.applyIncludeFields(object, definition.getIncludeFields());
+    private GridFS getGridFS(String bucket) {
+        GridFS grid = gridFSBuckets.get(bucket);
+        if (grid == null) {
+            grid = new GridFS(mongo.getDB(definition.getMongoDb()), bucket);
+            gridFSBuckets.put(bucket, grid);
         }
-        return object;
+        return grid;
+    }
+
+    private DBObject applyFieldFilter(DBObject object) {
+        return fieldFilter.apply(object);
     }
 
     /*
@@ -637,7 +790,9 @@ class Slurper implements Runnable {
 
     private void addToStream(final Operation operation, final BSONTimestamp currentTimestamp, DBObject data, final String collection)
             throws InterruptedException {
-        data = standardsConverter.addStandardData(VersionedIdHelper.unversionId(data));
+        // Scripts may modify the standards of the document
+        boolean copyStandards = definition.getScriptType() != null && definition.getScript() != null;
+        data = standardsConverter.addStandardData(VersionedIdHelper.unversionId(data), copyStandards);
 
         if (logger.isTraceEnabled()) {
             logger.trace("addToStream - operation [{}], currentTimestamp [{}], data [{}], collection [{}]", operation, currentTimestamp,
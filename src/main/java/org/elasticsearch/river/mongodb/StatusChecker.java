@@ -1,42 +1,122 @@
 package org.elasticsearch.river.mongodb;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.river.mongodb.util.MongoDBRiverHelper;
 
+/**
+ * Starts or stops the rivers of the node when their status is changed. A
+ * single thread is shared by all the rivers of the node, it fetches their
+ * status documents with one multi-get per poll and only runs while a river is
+ * registered. The multi-get goes through the client of a registered river, so
+ * it never outlives the rivers.
+ */
 class StatusChecker implements Runnable {
 
-    private final MongoDBRiver mongoDBRiver;
-    private final MongoDBRiverDefinition definition;
-    private final SharedContext context;
+    private static final long POLL_INTERVAL_MILLIS = 1000L;
+
+    private static final StatusChecker instance = new StatusChecker();
+
+    // Registered rivers by name
+    private final Map<String, MongoDBRiver> rivers = new HashMap<String, MongoDBRiver>();
+    private Thread statusThread;
+
+    /**
+     * Follow the status of a river once its start has been invoked
+     */
+    static void register(MongoDBRiver river, Settings settings) {
+        instance.add(river, EsExecutors.daemonThreadFactory(settings, "mongodb_river_status"));
+    }
+
+    static void unregister(MongoDBRiver river) {
+        instance.remove(river);
+    }
+
+    synchronized void add(MongoDBRiver river, ThreadFactory threadFactory) {
+        rivers.put(river.getRiverName(), river);
+        if (statusThread == null) {
+            statusThread = threadFactory.newThread(this);
+            statusThread.start();
+        }
+    }
+
+    synchronized void remove(MongoDBRiver river) {
+        if (rivers.get(river.getRiverName()) == river) {
+            rivers.remove(river.getRiverName());
+        }
+        if (rivers.isEmpty() && statusThread != null) {
+            statusThread.interrupt();
+            statusThread = null;
+        }
+    }
+
+    synchronized boolean isPolling() {
+        return statusThread != null;
+    }
 
-    public StatusChecker(MongoDBRiver mongoDBRiver, MongoDBRiverDefinition definition, SharedContext context) {
-        this.mongoDBRiver = mongoDBRiver;
-        this.definition = definition;
-        this.context = context;
+    private synchronized List<MongoDBRiver> getRivers() {
+        return new ArrayList<MongoDBRiver>(rivers.values());
+    }
+
+    private synchronized boolean isRegistered(MongoDBRiver river) {
+        return rivers.get(river.getRiverName()) == river;
     }
 
     @Override
     public void run() {
-        while (true) {
+        while (!Thread.currentThread().isInterrupted()) {
             try {
-                if (this.mongoDBRiver.startInvoked) {
-                    Status status = MongoDBRiverHelper.getRiverStatus(this.mongoDBRiver.client, this.definition.getRiverName());
-                    if (status != this.context.getStatus()) {
-                        if (status == Status.RUNNING) {
-                            MongoDBRiver.logger.trace("About to start river: {}", this.definition.getRiverName());
-                            this.mongoDBRiver.start();
-                        } else if (status == Status.STOPPED) {
-                            MongoDBRiver.logger.info("About to stop river: {}", this.definition.getRiverName());
-                            this.mongoDBRiver.close();
-                        }
-                    }
-                }
-                Thread.sleep(1000L);
+                checkStatus();
+                Thread.sleep(POLL_INTERVAL_MILLIS);
             } catch (InterruptedException e) {
                 MongoDBRiver.logger.info("Status thread interrupted", e, (Object) null);
                 Thread.currentThread().interrupt();
                 break;
+            } catch (Exception e) {
+                MongoDBRiver.logger.warn("Cannot check the status of the rivers", e);
             }
+        }
+    }
 
+    void checkStatus() {
+        List<MongoDBRiver> polled = getRivers();
+        if (polled.isEmpty()) {
+            return;
+        }
+        Client client = polled.get(0).getClient();
+        MultiGetRequestBuilder request = client.prepareMultiGet();
+        for (MongoDBRiver river : polled) {
+            request.add("_river", river.getRiverName(), MongoDBRiver.STATUS_ID);
+        }
+        MultiGetResponse response = request.get();
+        // The responses are in the order of the requests
+        for (int i = 0; i < polled.size(); i++) {
+            MongoDBRiver river = polled.get(i);
+            MultiGetItemResponse item = response.getResponses()[i];
+            if (item.isFailed()) {
+                MongoDBRiver.logger.debug("Cannot get status of river {}: {}", river.getRiverName(), item.getFailure().getMessage());
+                continue;
+            }
+            Status status = MongoDBRiverHelper.getRiverStatus(item.getResponse());
+            if (status != river.getStatus() && isRegistered(river)) {
+                if (status == Status.RUNNING) {
+                    MongoDBRiver.logger.trace("About to start river: {}", river.getRiverName());
+                    river.start();
+                } else if (status == Status.STOPPED) {
+                    MongoDBRiver.logger.info("About to stop river: {}", river.getRiverName());
+                    river.stop();
+                }
+            }
         }
     }
 }
@@ -0,0 +1,145 @@
+package org.elasticsearch.river.mongodb.util;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.regex.Pattern;
+
+import org.bson.BSONObject;
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.Code;
+import org.bson.types.ObjectId;
+import org.bson.types.Symbol;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import com.mongodb.DBRef;
+
+/*
+ * Writes MongoDB documents straight into an XContentBuilder without building an intermediate map
+ */
+public class BSONXContentSerializer {
+
+    public static final String DBREF_ID_FIELD = "id";
+    public static final String DBREF_REF_FIELD = "ref";
+
+    private final XContentType contentType;
+
+    public BSONXContentSerializer(XContentType contentType) {
+        this.contentType = contentType;
+    }
+
+    public XContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Serialize a document as the source of an index request
+     *
+     * @param document
+     * @return
+     * @throws IOException
+     */
+    public XContentBuilder serialize(BSONObject document) throws IOException {
+        XContentBuilder builder = XContentFactory.contentBuilder(contentType);
+        writeObject(builder, document);
+        return builder;
+    }
+
+    private void writeObject(XContentBuilder builder, BSONObject object) throws IOException {
+        if (object instanceof Map) {
+            writeMap(builder, (Map<?, ?>) object);
+            return;
+        }
+        builder.startObject();
+        for (String key : object.keySet()) {
+            builder.field(key);
+            writeValue(builder, object.get(key));
+        }
+        builder.endObject();
+    }
+
+    private void writeMap(XContentBuilder builder, Map<?, ?> map) throws IOException {
+        builder.startObject();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            builder.field(String.valueOf(entry.getKey()));
+            writeValue(builder, entry.getValue());
+        }
+        builder.endObject();
+    }
+
+    private void writeList(XContentBuilder builder, List<?> list) throws IOException {
+        builder.startArray();
+        if (list instanceof RandomAccess) {
+            for (int i = 0; i < list.size(); i++) {
+                writeValue(builder, list.get(i));
+            }
+        } else {
+            for (Object value : list) {
+                writeValue(builder, value);
+            }
+        }
+        builder.endArray();
+    }
+
+    private void writeDBRef(XContentBuilder builder, DBRef ref) throws IOException {
+        builder.startObject();
+        builder.field(DBREF_ID_FIELD);
+        writeValue(builder, ref.getId());
+        builder.field(DBREF_REF_FIELD, ref.getRef());
+        builder.endObject();
+    }
+
+    private void writeValue(XContentBuilder builder, Object value) throws IOException {
+        if (value == null) {
+            builder.nullValue();
+        } else if (value instanceof String) {
+            builder.value((String) value);
+        } else if (value instanceof ObjectId) {
+            builder.value(value.toString());
+        } else if (value instanceof Date) {
+            builder.value((Date) value);
+        } else if (value instanceof List) {
+            // BasicDBList is both a List and a BSONObject
+            writeList(builder, (List<?>) value);
+        } else if (value instanceof DBRef) {
+            writeDBRef(builder, (DBRef) value);
+        } else if (value instanceof BSONObject) {
+            writeObject(builder, (BSONObject) value);
+        } else if (value instanceof Map) {
+            writeMap(builder, (Map<?, ?>) value);
+        } else if (value instanceof BSONTimestamp) {
+            // Same string as the map based serialization, existing mappings
+            // keep indexing timestamps as strings
+            builder.value(value.toString());
+        } else if (value instanceof Binary) {
+            builder.value(((Binary) value).getData());
+        } else if (value instanceof byte[]) {
+            builder.value((byte[]) value);
+        } else if (value instanceof Object[]) {
+            builder.startArray();
+            for (Object item : (Object[]) value) {
+                writeValue(builder, item);
+            }
+            builder.endArray();
+        } else if (value instanceof Iterable) {
+            builder.startArray();
+            for (Object item : (Iterable<?>) value) {
+                writeValue(builder, item);
+            }
+            builder.endArray();
+        } else if (value instanceof Pattern) {
+            builder.value(((Pattern) value).pattern());
+        } else if (value instanceof Code) {
+            builder.value(((Code) value).getCode());
+        } else if (value instanceof Symbol) {
+            builder.value(((Symbol) value).getSymbol());
+        } else {
+            builder.value(value);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package org.elasticsearch.river.mongodb.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFSFile;
+
+/**
+ * The include_fields and exclude_fields options compiled once into path tries.
+ * A path is a list of dot separated field names, "*" matches any field at its
+ * level. A document is filtered in a single pass over the fields it shares with
+ * the trie. The exclusions are applied in place, the inclusions build a new
+ * document. The elements of an array are filtered as the array itself.
+ */
+public final class FieldFilter {
+
+    public static final String WILDCARD = "*";
+
+    private static final FieldFilter NONE = new FieldFilter(null, null);
+
+    private final Node include;
+    private final Node exclude;
+
+    private FieldFilter(Node include, Node exclude) {
+        this.include = include;
+        this.exclude = exclude;
+    }
+
+    public static FieldFilter compile(Set<String> includeFields, Set<String> excludeFields) {
+        if (includeFields == null && excludeFields == null) {
+            return NONE;
+        }
+        return new FieldFilter(compile(includeFields), compile(excludeFields));
+    }
+
+    private static Node compile(Set<String> fields) {
+        if (fields == null) {
+            return null;
+        }
+        Node root = new Node();
+        for (String field : fields) {
+            Node node = root;
+            for (String name : field.split("\\.")) {
+                node = node.child(name);
+            }
+            node.terminal = true;
+        }
+        root.mergeWildcards();
+        return root;
+    }
+
+    public DBObject apply(DBObject object) {
+        if (object instanceof GridFSFile) {
+            GridFSFile file = (GridFSFile) object;
+            DBObject metadata = file.getMetaData();
+            if (metadata != null) {
+                file.setMetaData(apply(metadata));
+            }
+            return object;
+        }
+        if (exclude != null) {
+            exclude(exclude, object);
+        }
+        if (include != null) {
+            object = include(include, object);
+        }
+        return object;
+    }
+
+    private static void exclude(Node node, DBObject object) {
+        if (object instanceof BasicDBList) {
+            for (Object item : (BasicDBList) object) {
+                if (item instanceof DBObject) {
+                    exclude(node, (DBObject) item);
+                }
+            }
+            return;
+        }
+        // Without wildcard only the fields of the trie are looked up
+        Iterable<String> names = node.wildcard != null ? new ArrayList<String>(object.keySet()) : node.children.keySet();
+        for (String name : names) {
+            Node child = node.get(name);
+            if (child == null || !object.containsField(name)) {
+                continue;
+            }
+            if (child.terminal) {
+                object.removeField(name);
+            } else {
+                Object value = object.get(name);
+                if (value instanceof DBObject) {
+                    exclude(child, (DBObject) value);
+                }
+            }
+        }
+    }
+
+    private static DBObject include(Node node, DBObject object) {
+        if (object instanceof BasicDBList) {
+            BasicDBList filtered = new BasicDBList();
+            for (Object item : (BasicDBList) object) {
+                if (item instanceof DBObject) {
+                    filtered.add(include(node, (DBObject) item));
+                }
+            }
+            return filtered;
+        }
+        DBObject filtered = new BasicDBObject();
+        for (String name : object.keySet()) {
+            Node child = node.get(name);
+            if (child == null) {
+                continue;
+            }
+            Object value = object.get(name);
+            if (child.terminal) {
+                filtered.put(name, value);
+            } else if (value instanceof DBObject) {
+                filtered.put(name, include(child, (DBObject) value));
+            }
+        }
+        return filtered;
+    }
+
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<String, Node>();
+        private Node wildcard;
+        // The whole field is matched, its value is not filtered any further
+        private boolean terminal;
+
+        private Node child(String name) {
+            if (WILDCARD.equals(name)) {
+                if (wildcard == null) {
+                    wildcard = new Node();
+                }
+                return wildcard;
+            }
+            Node child = children.get(name);
+            if (child == null) {
+                child = new Node();
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        private Node get(String name) {
+            Node child = children.get(name);
+            return child != null ? child : wildcard;
+        }
+
+        /*
+         * A field matched by both its name and the wildcard gets the paths of
+         * both, so each field is only looked up once
+         */
+        private void mergeWildcards() {
+            if (wildcard != null) {
+                wildcard.mergeWildcards();
+                for (Node child : children.values()) {
+                    child.merge(wildcard);
+                }
+            }
+            for (Node child : children.values()) {
+                child.mergeWildcards();
+            }
+        }
+
+        private void merge(Node other) {
+            terminal |= other.terminal;
+            for (Map.Entry<String, Node> entry : other.children.entrySet()) {
+                child(entry.getKey()).merge(entry.getValue());
+            }
+            if (other.wildcard != null) {
+                child(WILDCARD).merge(other.wildcard);
+            }
+        }
+    }
+
+    /**
+     * The MongoDB projection of the fields to fetch. The exclusions with a
+     * wildcard and the inclusions below their first wildcard are left to
+     * {@link #apply(DBObject)}.
+     */
+    public static BasicDBObject projection(Set<String> includeFields, Set<String> excludeFields) {
+        BasicDBObject projection = new BasicDBObject();
+        if (excludeFields != null) {
+            for (String field : excludeFields) {
+                if (wildcardIndex(field) < 0) {
+                    projection.put(field, 0);
+                }
+            }
+        } else if (includeFields != null) {
+            for (String field : includeFields) {
+                int wildcard = wildcardIndex(field);
+                if (wildcard == 0) {
+                    // Any top level field may be included
+                    return new BasicDBObject();
+                }
+                projection.put(wildcard < 0 ? field : field.substring(0, wildcard - 1), 1);
+            }
+        }
+        return projection;
+    }
+
+    /*
+     * Index of the first wildcard name of the path, -1 if none
+     */
+    private static int wildcardIndex(String field) {
+        return ("." + field + ".").indexOf("." + WILDCARD + ".");
+    }
+}
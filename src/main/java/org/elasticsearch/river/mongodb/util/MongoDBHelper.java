@@ -19,16 +19,14 @@
 
 package org.elasticsearch.river.mongodb.util;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Arrays;
-import java.util.HashSet;
+import java.io.SequenceInputStream;
 import java.util.Properties;
 import java.util.Set;
 
 import org.elasticsearch.common.Base64;
-import org.elasticsearch.common.collect.Sets;
 import org.elasticsearch.common.io.FastStringReader;
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.joda.time.DateTimeZone;
@@ -36,7 +34,6 @@ import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentFactory;
 
-import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.gridfs.GridFSDBFile;
 import com.mongodb.gridfs.GridFSFile;
@@ -47,33 +44,45 @@ import com.mongodb.gridfs.GridFSFile;
 public abstract class MongoDBHelper {
 
     public static XContentBuilder serialize(GridFSDBFile file) throws IOException {
+        return serialize(file, -1);
+    }
 
-        XContentBuilder builder = XContentFactory.jsonBuilder();
-
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    /**
+     * Serialize a GridFS file, with its content only if it is not larger
+     * than maxAttachmentSize (-1 for no limit). The chunks are streamed
+     * through the Base64 encoder straight into the builder.
+     */
+    public static XContentBuilder serialize(GridFSDBFile file, long maxAttachmentSize) throws IOException {
 
-        int nRead;
-        byte[] data = new byte[1024];
+        XContentBuilder builder = XContentFactory.jsonBuilder();
 
-        InputStream stream = file.getInputStream();
-        while ((nRead = stream.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+        builder.startObject();
+        if (maxAttachmentSize < 0 || file.getLength() <= maxAttachmentSize) {
+            builder.startObject("content");
+            builder.field("content_type", file.getContentType());
+            builder.field("title", file.getFilename());
+            builder.rawField("content", encode(file.getInputStream()));
+            builder.endObject();
         }
+        metadata(builder, file);
+        builder.endObject();
 
-        buffer.flush();
-        stream.close();
-
-        String encodedContent = Base64.encodeBytes(buffer.toByteArray());
-
-        // Probably not necessary...
-        buffer.close();
+        return builder;
+    }
 
+    /**
+     * Serialize the fields of a GridFS file without its content, as a partial
+     * update of an attachment whose content did not change
+     */
+    public static XContentBuilder serializeMetadata(GridFSFile file) throws IOException {
+        XContentBuilder builder = XContentFactory.jsonBuilder();
         builder.startObject();
-        builder.startObject("content");
-        builder.field("content_type", file.getContentType());
-        builder.field("title", file.getFilename());
-        builder.field("content", encodedContent);
+        metadata(builder, file);
         builder.endObject();
+        return builder;
+    }
+
+    private static void metadata(XContentBuilder builder, GridFSFile file) throws IOException {
         builder.field("filename", file.getFilename());
         builder.field("contentType", file.getContentType());
         builder.field("md5", file.getMD5());
@@ -88,79 +97,30 @@ public abstract class MongoDBHelper {
             }
         }
         builder.endObject();
-        builder.endObject();
-
-        return builder;
     }
 
-    public static DBObject applyExcludeFields(DBObject bsonObject, Set<String> excludeFields) {
-        if (excludeFields == null) {
-            return bsonObject;
-        }
+    /*
+     * The encoded stream as a raw JSON string value
+     */
+    private static InputStream encode(InputStream stream) {
+        InputStream encoded = new Base64.InputStream(stream, Base64.ENCODE);
+        return new SequenceInputStream(new SequenceInputStream(quote(), encoded), quote());
+    }
 
-        DBObject filteredObject = bsonObject;
-        for (String field : excludeFields) {
-            if (field.contains(".")) {
-                String rootObject = field.substring(0, field.indexOf("."));
-                String childObject = field.substring(field.indexOf(".") + 1);
-                if (filteredObject.containsField(rootObject)) {
-                    Object object = filteredObject.get(rootObject);
-                    if (object instanceof DBObject) {
-                        DBObject object2 = (DBObject) object;
-                        object2 = applyExcludeFields(object2, new HashSet<String>(Arrays.asList(childObject)));
-                    }
-                }
-            } else {
-                if (filteredObject.containsField(field)) {
-                    filteredObject.removeField(field);
-                }
-            }
-        }
-        return filteredObject;
+    private static InputStream quote() {
+        return new ByteArrayInputStream(new byte[] { '"' });
     }
 
-    private static Set<String> getChildItems(String parent, final Set<String> fields) {
-        Set<String> children = Sets.newHashSet();
-        for (String field : fields) {
-            if (field.startsWith(parent + ".")) {
-                children.add(field.substring((parent + ".").length()));
-            } else if (field.startsWith(parent)) {
-                children.add(field);
-            }
-        }
-        return children;
+    /*
+     * The fields are compiled on each call, a river compiles its FieldFilter
+     * once
+     */
+    public static DBObject applyExcludeFields(DBObject bsonObject, Set<String> excludeFields) {
+        return FieldFilter.compile(null, excludeFields).apply(bsonObject);
     }
 
     public static DBObject applyIncludeFields(DBObject bsonObject, final Set<String> includeFields) {
-        if (includeFields == null) {
-            return bsonObject;
-        }
-
-        DBObject filteredObject = new BasicDBObject();
-
-        for (String field : bsonObject.keySet()) {
-            if (includeFields.contains(field)) {
-                filteredObject.put(field, bsonObject.get(field));
-            }
-        }
-
-        for (String field : includeFields) {
-            if (field.contains(".")) {
-                String rootObject = field.substring(0, field.indexOf("."));
-                // String childObject = field.substring(field.indexOf(".") + 1);
-                Object object = bsonObject.get(rootObject);
-                if (object instanceof DBObject) {
-                    DBObject object2 = (DBObject) object;
-                    // object2 = applyIncludeFields(object2, new
-                    // HashSet<String>(Arrays.asList(childObject)));
-                    System.out.println(getChildItems(rootObject, includeFields));
-                    object2 = applyIncludeFields(object2, getChildItems(rootObject, includeFields));
-
-                    filteredObject.put(rootObject, object2);
-                }
-            }
-        }
-        return filteredObject;
+        return FieldFilter.compile(includeFields, null).apply(bsonObject);
     }
 
     public static String getRiverVersion() {
@@ -187,16 +147,6 @@ public abstract class MongoDBHelper {
     }
 
     public static DBObject applyFieldFilter(DBObject object, final Set<String> includeFields, final Set<String> excludeFields) {
-        if (object instanceof GridFSFile) {
-            GridFSFile file = (GridFSFile) object;
-            DBObject metadata = file.getMetaData();
-            if (metadata != null) {
-                file.setMetaData(applyFieldFilter(metadata, includeFields, excludeFields));
-            }
-        } else {
-            object = MongoDBHelper.applyExcludeFields(object, excludeFields);
-            object = MongoDBHelper.applyIncludeFields(object, includeFields);
-        }
-        return object;
+        return FieldFilter.compile(includeFields, excludeFields).apply(object);
     }
 }
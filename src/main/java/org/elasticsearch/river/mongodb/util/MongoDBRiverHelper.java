@@ -4,7 +4,9 @@ import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 
 import java.io.IOException;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
@@ -18,7 +20,13 @@ public abstract class MongoDBRiverHelper {
     private static final ESLogger logger = Loggers.getLogger(MongoDBRiverHelper.class);
 
     public static Status getRiverStatus(Client client, String riverName) {
-        GetResponse statusResponse = client.prepareGet("_river", riverName, MongoDBRiver.STATUS_ID).get();
+        return getRiverStatus(client.prepareGet("_river", riverName, MongoDBRiver.STATUS_ID).get());
+    }
+
+    /**
+     * The status held by a _riverstatus document, UNKNOWN if it does not exist
+     */
+    public static Status getRiverStatus(GetResponse statusResponse) {
         if (!statusResponse.isExists()) {
             return Status.UNKNOWN;
         } else {
@@ -30,14 +38,39 @@ public abstract class MongoDBRiverHelper {
 
     public static void setRiverStatus(Client client, String riverName, Status status) {
         logger.debug("setRiverStatus called with {} - {}", riverName, status);
-        XContentBuilder xb;
         try {
-            xb = jsonBuilder().startObject().startObject(MongoDBRiver.TYPE).field(MongoDBRiver.STATUS_FIELD, status).endObject()
-                    .endObject();
-            client.prepareIndex("_river", riverName, MongoDBRiver.STATUS_ID).setSource(xb).get();
+            client.prepareIndex("_river", riverName, MongoDBRiver.STATUS_ID).setSource(statusSource(status)).get();
         } catch (IOException ioEx) {
             logger.error("setRiverStatus failed for river {}", ioEx, riverName);
         }
     }
 
+    /**
+     * Write the status without waiting for the response, from the indexing
+     * and bulk listener threads
+     */
+    public static void setRiverStatusAsync(Client client, final String riverName, Status status) {
+        logger.debug("setRiverStatusAsync called with {} - {}", riverName, status);
+        try {
+            client.prepareIndex("_river", riverName, MongoDBRiver.STATUS_ID).setSource(statusSource(status))
+                    .execute(new ActionListener<IndexResponse>() {
+                        @Override
+                        public void onResponse(IndexResponse response) {
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.error("setRiverStatus failed for river {}", e, riverName);
+                        }
+                    });
+        } catch (IOException ioEx) {
+            logger.error("setRiverStatus failed for river {}", ioEx, riverName);
+        }
+    }
+
+    private static XContentBuilder statusSource(Status status) throws IOException {
+        return jsonBuilder().startObject().startObject(MongoDBRiver.TYPE).field(MongoDBRiver.STATUS_FIELD, status).endObject()
+                .endObject();
+    }
+
 }
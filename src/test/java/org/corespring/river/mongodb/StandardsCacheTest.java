@@ -0,0 +1,35 @@
+package org.corespring.river.mongodb;
+
+import com.mongodb.ServerAddress;
+import org.elasticsearch.river.mongodb.MongoDBRiverDefinition;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+public class StandardsCacheTest {
+
+  @Test
+  public void testKeyIgnoresServerOrder() throws Exception {
+    ServerAddress first = new ServerAddress("localhost", 27017);
+    ServerAddress second = new ServerAddress("localhost", 27018);
+
+    assertEquals(StandardsCache.getKey(definition("corespring", first, second)),
+      StandardsCache.getKey(definition("corespring", second, first)));
+  }
+
+  @Test
+  public void testKeyIncludesDatabase() throws Exception {
+    ServerAddress server = new ServerAddress("localhost", 27017);
+
+    assertFalse(StandardsCache.getKey(definition("corespring", server))
+      .equals(StandardsCache.getKey(definition("other", server))));
+  }
+
+  private MongoDBRiverDefinition definition(String db, ServerAddress... servers) {
+    return new MongoDBRiverDefinition.Builder().mongoServers(Arrays.asList(servers)).mongoDb(db).build();
+  }
+
+}
@@ -8,7 +8,11 @@ import java.util.*;
 
 import static org.mockito.Mockito.*;
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNotSame;
 import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
 
 public class StandardsConverterTest {
 
@@ -33,7 +37,7 @@ public class StandardsConverterTest {
     "Conventions of Standard English", "this isn't necessary");
 
   private Map standard(String dotNotation, String category, String standard, String subCategory, String extra) {
-    Map<String, String> map = new HashMap<String, String>();
+    Map<String, Object> map = new HashMap<String, Object>();
     map.put(Standard.Keys.DOT_NOTATION, dotNotation);
     map.put(Standard.Keys.CATEGORY, category);
     map.put(Standard.Keys.STANDARD, standard);
@@ -84,6 +88,81 @@ public class StandardsConverterTest {
 
   }
 
+  @Test
+  public void testUnknownStandardIsSkipped() {
+    DBObject object = new BasicDBObject();
+    BasicDBList standardsNotation = new BasicDBList();
+    standardsNotation.add("unknown");
+    standardsNotation.add(RL45);
+    object.put(ContentKeys.STANDARDS, standardsNotation);
+
+    BasicDBList list = (BasicDBList) standardsConverter.addStandardData(object).get(ContentKeys.STANDARDS);
+
+    assertEquals(list.size(), 1);
+    assertEquals(((DBObject) list.get(0)).get(Standard.Keys.DOT_NOTATION), RL45);
+  }
+
+  @Test
+  public void testStandardIsSharedByDocuments() {
+    DBObject first = standardsConverter.addStandardData(new BasicDBObject(ContentKeys.STANDARDS, new BasicDBList() { {
+      add(W52c);
+    } }));
+    DBObject second = standardsConverter.addStandardData(new BasicDBObject(ContentKeys.STANDARDS, new BasicDBList() { {
+      add(W52c);
+    } }));
+
+    DBObject firstStandard = (DBObject) ((BasicDBList) first.get(ContentKeys.STANDARDS)).get(0);
+    DBObject secondStandard = (DBObject) ((BasicDBList) second.get(ContentKeys.STANDARDS)).get(0);
+    assertSame(firstStandard, standardsConverter.getStandardByDotNotation(W52c));
+    assertSame(secondStandard, firstStandard);
+  }
+
+  @Test
+  public void testStandardIsCopiedForScripts() {
+    DBObject document = standardsConverter.addStandardData(new BasicDBObject(ContentKeys.STANDARDS, new BasicDBList() { {
+      add(W52c);
+    } }), true);
+    DBObject standard = (DBObject) ((BasicDBList) document.get(ContentKeys.STANDARDS)).get(0);
+    assertNotSame(standard, standardsConverter.getStandardByDotNotation(W52c));
+    assertEquals(standard, standardsConverter.getStandardByDotNotation(W52c));
+
+    standard.put("extra", "data");
+    standard.removeField(Standard.Keys.STANDARD);
+
+    assertNull(standardsConverter.getStandardByDotNotation(W52c).get("extra"));
+    assertNotNull(standardsConverter.getStandardByDotNotation(W52c).get(Standard.Keys.STANDARD));
+  }
+
+  @Test(expectedExceptions = UnsupportedOperationException.class)
+  public void testStandardIsImmutable() {
+    standardsConverter.getStandardByDotNotation(L41d).put("extra", "data");
+  }
+
+  @Test
+  public void testRefreshStandard() {
+    Map standard = standard(RL45, "Reading: Literature", "Old description", "Craft and Structure", "extra data");
+    standard.put(Standard.Keys.ID, "id");
+    StandardsDAO standardsDAO = mock(StandardsDAO.class);
+    when(standardsDAO.getStandards()).thenReturn(Collections.singletonList(standard));
+    StandardsConverter converter = new StandardsConverter(standardsDAO);
+
+    // Updated standard
+    Map updated = standard(RL46, "Reading: Literature", "New description", "Craft and Structure", "extra data");
+    updated.put(Standard.Keys.ID, "id");
+    when(standardsDAO.getStandard("id")).thenReturn(updated);
+    assertEquals(converter.refreshStandard("id"), new HashSet<String>(Arrays.asList(RL45, RL46)));
+    assertNull(converter.getStandardByDotNotation(RL45));
+    assertEquals(converter.getStandardByDotNotation(RL46).get(Standard.Keys.STANDARD), "New description");
+
+    // Removed standard
+    when(standardsDAO.getStandard("id")).thenReturn(null);
+    assertEquals(converter.refreshStandard("id"), Collections.singleton(RL46));
+    assertNull(converter.getStandardByDotNotation(RL46));
+
+    // Unknown standard
+    assertTrue(converter.refreshStandard("unknown").isEmpty());
+  }
+
   private Map getStandardByDotNotation(String dotNotation, Collection<Map> standards) {
     for (Map standard : standards) {
       if (standard.containsKey(Standard.Keys.DOT_NOTATION) &&
@@ -0,0 +1,68 @@
+package org.corespring.river.mongodb;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+import org.elasticsearch.river.mongodb.MongoDBRiver;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the parsing of the id forms handled by {@link VersionedId}. Not run by the unit tests, run it with the
+ * main method from the test classpath.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class VersionedIdBenchmark {
+
+  private final ObjectId objectId = new ObjectId();
+  private final DBObject compoundId =
+    new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId).append(VersionedIdHelper.MONGODB_VERSION_FIELD, 4);
+  private final String stringId = objectId + ":4";
+
+  @Benchmark
+  public VersionedId parseObjectId() {
+    return VersionedId.parse(objectId);
+  }
+
+  @Benchmark
+  public VersionedId parseCompoundId() {
+    return VersionedId.parse(compoundId);
+  }
+
+  @Benchmark
+  public VersionedId parseStringId() {
+    return VersionedId.parse(stringId);
+  }
+
+  @Benchmark
+  public String versionedIdStringOfCompoundId() {
+    return VersionedIdHelper.versionedIdString(compoundId);
+  }
+
+  @Benchmark
+  public DBObject unversionCompoundId() {
+    return VersionedIdHelper.unversionId(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, compoundId));
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(VersionedIdBenchmark.class.getSimpleName()).build()).run();
+  }
+
+}
@@ -76,4 +76,88 @@ public class VersionedIdHelperTest {
     Assert.assertEquals(resultVersion, version);
   }
 
+  public void testGetVersionNumber() {
+    DBObject id = new BasicDBObject();
+    id.put(MongoDBRiver.MONGODB_ID_FIELD, new ObjectId());
+    id.put(VersionedIdHelper.MONGODB_VERSION_FIELD, new BigDecimal(3));
+    DBObject data = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id);
+
+    Assert.assertTrue(VersionedIdHelper.isVersioned(data));
+    Assert.assertEquals(VersionedIdHelper.getBaseId(data), id.get(MongoDBRiver.MONGODB_ID_FIELD));
+    Assert.assertEquals(VersionedIdHelper.getVersionNumber(data), 3);
+
+    // Same version once the id has been unversioned
+    VersionedIdHelper.unversionId(data);
+    Assert.assertFalse(VersionedIdHelper.isVersioned(data));
+    Assert.assertEquals(VersionedIdHelper.getVersionNumber(data), 3);
+  }
+
+  public void testGetVersionNumberWithUnversionedId() {
+    DBObject data = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, new ObjectId());
+
+    Assert.assertFalse(VersionedIdHelper.isVersioned(data));
+    Assert.assertEquals(VersionedIdHelper.getVersionNumber(data), 0);
+  }
+
+  public void testParseObjectId() {
+    ObjectId objectId = new ObjectId();
+    VersionedId versionedId = VersionedId.parse(objectId);
+
+    Assert.assertEquals(versionedId.getId(), objectId);
+    Assert.assertNull(versionedId.getVersion());
+    Assert.assertEquals(versionedId.toString(), objectId.toString());
+  }
+
+  public void testParseCompoundId() {
+    ObjectId objectId = new ObjectId();
+    DBObject id = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId).append(VersionedIdHelper.MONGODB_VERSION_FIELD, 2);
+    VersionedId versionedId = VersionedId.parse(id);
+
+    Assert.assertEquals(versionedId.getId(), objectId);
+    Assert.assertEquals(versionedId.getVersion(), 2);
+    Assert.assertEquals(versionedId.toString(), objectId.toString());
+  }
+
+  public void testCompoundAndStringIdsAreEqual() {
+    ObjectId objectId = new ObjectId();
+    VersionedId fromString = VersionedId.parse(objectId + ":5");
+
+    Assert.assertEquals(VersionedId.parse(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId)
+      .append(VersionedIdHelper.MONGODB_VERSION_FIELD, 5)), fromString);
+    Assert.assertEquals(VersionedId.parse(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId)
+      .append(VersionedIdHelper.MONGODB_VERSION_FIELD, new BigDecimal(5))), fromString);
+    Assert.assertEquals(VersionedId.parse(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId)
+      .append(VersionedIdHelper.MONGODB_VERSION_FIELD, 5.0d)), fromString);
+  }
+
+  public void testParseStringId() {
+    ObjectId objectId = new ObjectId();
+    VersionedId versionedId = VersionedId.parse(objectId + ":7");
+
+    Assert.assertEquals(versionedId.getId(), objectId);
+    Assert.assertEquals(versionedId.getVersion(), 7L);
+    Assert.assertEquals(versionedId, VersionedId.parse(objectId + ":7"));
+    Assert.assertNull(VersionedId.parse(objectId.toString()).getVersion());
+  }
+
+  public void testParseUnsupportedId() {
+    Assert.assertNull(VersionedId.parse("not an id"));
+    Assert.assertNull(VersionedId.parse(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, "not an id")));
+    Assert.assertNull(VersionedId.parse(42));
+    Assert.assertNull(VersionedId.parse(null));
+  }
+
+  public void testVersionedIdOfUnversionedDocument() {
+    ObjectId objectId = new ObjectId();
+    DBObject id = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, objectId).append(VersionedIdHelper.MONGODB_VERSION_FIELD, 3);
+    DBObject data = VersionedIdHelper.unversionId(new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id));
+
+    Assert.assertEquals(VersionedId.of(data), VersionedId.parse(id));
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testVersionedIdOfDocumentWithoutId() {
+    VersionedId.of(new BasicDBObject());
+  }
+
 }
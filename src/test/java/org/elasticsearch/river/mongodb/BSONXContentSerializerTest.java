@@ -0,0 +1,98 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.BSONTimestamp;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.collect.Tuple;
+import org.elasticsearch.common.joda.time.DateTimeZone;
+import org.elasticsearch.common.joda.time.format.ISODateTimeFormat;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.river.mongodb.util.BSONXContentSerializer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBRef;
+
+@Test
+public class BSONXContentSerializerTest {
+
+    @SuppressWarnings("unchecked")
+    public void testSerializeBSONTypes() throws Exception {
+        ObjectId id = new ObjectId();
+        ObjectId authorId = new ObjectId();
+        Date date = new Date();
+        byte[] data = new byte[] { 1, 2, 3, 4, 5 };
+
+        BasicDBObject comment = new BasicDBObject("text", "first");
+        comment.put("author", new DBRef(null, "authors", authorId));
+        BasicDBList comments = new BasicDBList();
+        comments.add(comment);
+        BasicDBList numbers = new BasicDBList();
+        numbers.add(1);
+        numbers.add(2);
+        BasicDBList matrix = new BasicDBList();
+        matrix.add(numbers);
+
+        BasicDBObject document = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id);
+        document.put("date", date);
+        document.put("author", new DBRef(null, "authors", authorId));
+        document.put("ts", new BSONTimestamp(1234, 5));
+        document.put("binary", new Binary(data));
+        document.put("comments", comments);
+        document.put("matrix", matrix);
+        document.put("nested", new BasicDBObject("level", new BasicDBObject("value", 42)));
+
+        BSONXContentSerializer serializer = new BSONXContentSerializer(XContentType.JSON);
+        Map<String, Object> source = XContentHelper.convertToMap(serializer.serialize(document).bytes().toBytes(), false).v2();
+
+        Assert.assertEquals(source.get(MongoDBRiver.MONGODB_ID_FIELD), id.toString());
+        Assert.assertEquals(source.get("date"), ISODateTimeFormat.dateTime().withZone(DateTimeZone.UTC).print(date.getTime()));
+        Map<String, Object> author = (Map<String, Object>) source.get("author");
+        Assert.assertEquals(author.get(BSONXContentSerializer.DBREF_ID_FIELD), authorId.toString());
+        Assert.assertEquals(author.get(BSONXContentSerializer.DBREF_REF_FIELD), "authors");
+        Assert.assertEquals(source.get("ts"), new BSONTimestamp(1234, 5).toString());
+        Assert.assertEquals(source.get("binary"), Base64.encodeBytes(data));
+
+        List<Object> serializedComments = (List<Object>) source.get("comments");
+        Assert.assertEquals(serializedComments.size(), 1);
+        Map<String, Object> serializedComment = (Map<String, Object>) serializedComments.get(0);
+        Assert.assertEquals(serializedComment.get("text"), "first");
+        Assert.assertEquals(((Map<String, Object>) serializedComment.get("author")).get(BSONXContentSerializer.DBREF_ID_FIELD),
+                authorId.toString());
+
+        List<Object> serializedMatrix = (List<Object>) source.get("matrix");
+        Assert.assertEquals(((List<Object>) serializedMatrix.get(0)).size(), 2);
+
+        Map<String, Object> level = (Map<String, Object>) ((Map<String, Object>) source.get("nested")).get("level");
+        Assert.assertEquals(level.get("value"), 42);
+    }
+
+    public void testSerializeSmile() throws Exception {
+        ObjectId id = new ObjectId();
+        BasicDBList scores = new BasicDBList();
+        scores.add(1.5d);
+        scores.add(2.5d);
+        BasicDBObject document = new BasicDBObject(MongoDBRiver.MONGODB_ID_FIELD, id);
+        document.put("count", 123456789L);
+        document.put("scores", scores);
+
+        BSONXContentSerializer serializer = new BSONXContentSerializer(XContentType.SMILE);
+        XContentBuilder builder = serializer.serialize(document);
+        Assert.assertEquals(builder.contentType(), XContentType.SMILE);
+
+        Tuple<XContentType, Map<String, Object>> source = XContentHelper.convertToMap(builder.bytes().toBytes(), false);
+        Assert.assertEquals(source.v1(), XContentType.SMILE);
+        Assert.assertEquals(source.v2().get(MongoDBRiver.MONGODB_ID_FIELD), id.toString());
+        Assert.assertEquals(((Number) source.v2().get("count")).longValue(), 123456789L);
+        Assert.assertEquals(((List<?>) source.v2().get("scores")).size(), 2);
+    }
+}
@@ -0,0 +1,91 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class BulkConcurrencyControllerTest {
+
+    public void testStartAtConfiguredLimit() {
+        BulkConcurrencyController controller = new BulkConcurrencyController(4);
+        Assert.assertEquals(controller.getLimit(), 4);
+    }
+
+    public void testAdditiveIncrease() throws Exception {
+        BulkConcurrencyController controller = new BulkConcurrencyController(4);
+        controller.sent();
+        controller.release(100, true);
+        controller.sent();
+        controller.release(100, true);
+        Assert.assertEquals(controller.getLimit(), 1);
+        for (int i = 0; i < 20; i++) {
+            controller.sent();
+            controller.release(100, false);
+        }
+        Assert.assertEquals(controller.getLimit(), 4);
+        Assert.assertEquals(controller.getInFlight(), 0);
+    }
+
+    public void testMultiplicativeDecreaseOnRejection() throws Exception {
+        BulkConcurrencyController controller = grow(new BulkConcurrencyController(8));
+        Assert.assertEquals(controller.getLimit(), 8);
+        controller.sent();
+        controller.release(100, true);
+        Assert.assertEquals(controller.getLimit(), 4);
+        controller.sent();
+        controller.release(100, true);
+        Assert.assertEquals(controller.getLimit(), 2);
+    }
+
+    public void testMultiplicativeDecreaseOnLatency() throws Exception {
+        BulkConcurrencyController controller = grow(new BulkConcurrencyController(8));
+        controller.sent();
+        controller.release(150, false);
+        Assert.assertEquals(controller.getLimit(), 8);
+        controller.sent();
+        controller.release(1000, false);
+        Assert.assertEquals(controller.getLimit(), 4);
+    }
+
+    public void testNeverBelowOne() throws Exception {
+        BulkConcurrencyController controller = new BulkConcurrencyController(0);
+        Assert.assertEquals(controller.getMaxLimit(), 1);
+        controller.sent();
+        controller.release(100, true);
+        Assert.assertEquals(controller.getLimit(), 1);
+    }
+
+    public void testAwaitCapacityBlocksAtLimit() throws Exception {
+        final BulkConcurrencyController controller = new BulkConcurrencyController(2);
+        controller.sent();
+        controller.sent();
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    controller.awaitCapacity();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        controller.release(100, false);
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        thread.join();
+    }
+
+    private BulkConcurrencyController grow(BulkConcurrencyController controller) {
+        for (int i = 0; i < 100; i++) {
+            controller.sent();
+            controller.release(100, false);
+        }
+        return controller;
+    }
+}
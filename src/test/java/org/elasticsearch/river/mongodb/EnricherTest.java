@@ -0,0 +1,147 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.elasticsearch.river.mongodb.MongoDBRiverDefinition.Enrichment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+@Test
+public class EnricherTest {
+
+    private final DBObject john = new BasicDBObject("_id", 1).append("name", "John");
+    private final DBObject jane = new BasicDBObject("_id", 2).append("name", "Jane");
+
+    public void testResolveBatchWithOneQuery() {
+        DB db = mock(DB.class);
+        DBCollection users = users(db, john, jane);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment("users", false)));
+
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.INSERT, 1), entry(Operation.UPDATE, list(1, 2)),
+                entry(Operation.INSERT, 3));
+        enricher.enrich(batch);
+
+        verify(users, times(1)).find(any(DBObject.class), any(DBObject.class));
+        Assert.assertSame(batch.get(0).getData().get("author"), john);
+        Assert.assertEquals(batch.get(1).getData().get("author"), list(john, jane));
+        // Unknown references are left as is
+        Assert.assertEquals(batch.get(2).getData().get("author"), 3);
+    }
+
+    public void testCacheBetweenBatches() {
+        DB db = mock(DB.class);
+        DBCollection users = users(db, john);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment("users", false)));
+
+        enricher.enrich(Arrays.asList(entry(Operation.INSERT, 1)));
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.INSERT, 1));
+        enricher.enrich(batch);
+
+        verify(users, times(1)).find(any(DBObject.class), any(DBObject.class));
+        Assert.assertSame(batch.get(0).getData().get("author"), john);
+    }
+
+    public void testPreload() {
+        DB db = mock(DB.class);
+        DBCollection users = users(db, john, jane);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment("users", true)));
+
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.INSERT, 2), entry(Operation.INSERT, 3));
+        enricher.enrich(batch);
+
+        verify(users, times(1)).find(any(DBObject.class), any(DBObject.class));
+        Assert.assertSame(batch.get(0).getData().get("author"), jane);
+        Assert.assertEquals(batch.get(1).getData().get("author"), 3);
+    }
+
+    public void testReloadPreloadAfterTtl() {
+        DB db = mock(DB.class);
+        DBCollection users = users(db, john);
+        Enrichment enrichment = new Enrichment("author", "users", "_id", Arrays.asList("name"), 100, TimeValue.timeValueMillis(0),
+                true);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment));
+
+        enricher.enrich(Arrays.asList(entry(Operation.INSERT, 1)));
+
+        verify(users, times(2)).find(any(DBObject.class), any(DBObject.class));
+    }
+
+    public void testKeepReferencesOnLookupFailure() {
+        DB db = mock(DB.class);
+        when(db.getCollection("users")).thenThrow(new IllegalStateException("closed"));
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment("users", false)));
+
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.INSERT, 1));
+        enricher.enrich(batch);
+
+        Assert.assertEquals(batch.get(0).getData().get("author"), 1);
+    }
+
+    public void testResolveDBRef() {
+        DB db = mock(DB.class);
+        users(db, john);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment(null, false)));
+
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.INSERT, new DBRef(db, "users", 1)));
+        enricher.enrich(batch);
+
+        Assert.assertSame(batch.get(0).getData().get("author"), john);
+    }
+
+    public void testSkipDelete() {
+        DB db = mock(DB.class);
+        DBCollection users = users(db, john);
+        Enricher enricher = new Enricher(null, db, Collections.singletonList(enrichment("users", false)));
+
+        List<QueueEntry> batch = Arrays.asList(entry(Operation.DELETE, 1));
+        enricher.enrich(batch);
+
+        verify(users, times(0)).find(any(DBObject.class), any(DBObject.class));
+        Assert.assertEquals(batch.get(0).getData().get("author"), 1);
+    }
+
+    private Enrichment enrichment(String collection, boolean preload) {
+        return new Enrichment("author", collection, "_id", Arrays.asList("name"), 100, preload);
+    }
+
+    private DBCollection users(DB db, DBObject... documents) {
+        DBCollection collection = mock(DBCollection.class);
+        DBCursor cursor = mock(DBCursor.class);
+        when(db.getCollection("users")).thenReturn(collection);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        Boolean[] hasNext = new Boolean[documents.length];
+        Arrays.fill(hasNext, true);
+        hasNext[hasNext.length - 1] = false;
+        when(cursor.hasNext()).thenReturn(true, hasNext);
+        when(cursor.next()).thenReturn(documents[0], Arrays.copyOfRange(documents, 1, documents.length));
+        return collection;
+    }
+
+    private QueueEntry entry(Operation operation, Object author) {
+        return new QueueEntry(null, operation, new BasicDBObject("_id", "doc").append("author", author), "mycollection");
+    }
+
+    private BasicDBList list(Object... values) {
+        BasicDBList list = new BasicDBList();
+        list.addAll(Arrays.asList(values));
+        return list;
+    }
+}
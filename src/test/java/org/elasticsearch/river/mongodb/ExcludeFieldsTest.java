@@ -4,14 +4,17 @@ import static org.elasticsearch.common.io.Streams.copyToStringFromClasspath;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.river.mongodb.util.FieldFilter;
 import org.elasticsearch.river.mongodb.util.MongoDBHelper;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.mongodb.util.JSON;
 
@@ -87,4 +90,37 @@ public class ExcludeFieldsTest {
             Assert.fail();
         }
     }
+
+    public void testWildcardFields() {
+        DBObject dbObject = (DBObject) JSON
+                .parse("{\"a\": {\"x\": {\"secret\": 1, \"name\": \"x\"}, \"y\": {\"secret\": 2, \"name\": \"y\"}}, \"b\": 3}");
+        DBObject filteredObject = FieldFilter.compile(null, new HashSet<String>(Arrays.asList("a.*.secret"))).apply(dbObject);
+        DBObject a = (DBObject) filteredObject.get("a");
+        Assert.assertFalse(((DBObject) a.get("x")).containsField("secret"));
+        Assert.assertFalse(((DBObject) a.get("y")).containsField("secret"));
+        Assert.assertTrue(((DBObject) a.get("y")).containsField("name"));
+        Assert.assertTrue(filteredObject.containsField("b"));
+
+        dbObject = (DBObject) JSON.parse("{\"a\": {\"x\": {\"secret\": 1, \"name\": \"x\"}, \"y\": {\"secret\": 2}}, \"b\": 3}");
+        filteredObject = FieldFilter.compile(new HashSet<String>(Arrays.asList("a.*.name", "a.y")), null).apply(dbObject);
+        a = (DBObject) filteredObject.get("a");
+        Assert.assertEquals(((DBObject) a.get("x")).keySet(), new HashSet<String>(Arrays.asList("name")));
+        Assert.assertEquals(((DBObject) a.get("y")).keySet(), new HashSet<String>(Arrays.asList("secret")));
+        Assert.assertFalse(filteredObject.containsField("b"));
+    }
+
+    public void testArrayFields() {
+        DBObject dbObject = (DBObject) JSON.parse("{\"items\": [{\"name\": \"a\", \"price\": 1}, {\"name\": \"b\", \"price\": 2}]}");
+        DBObject filteredObject = FieldFilter.compile(new HashSet<String>(Arrays.asList("items.name")), null).apply(dbObject);
+        List<?> items = (List<?>) filteredObject.get("items");
+        Assert.assertEquals(items.size(), 2);
+        Assert.assertEquals(((DBObject) items.get(1)).get("name"), "b");
+        Assert.assertFalse(((DBObject) items.get(1)).containsField("price"));
+    }
+
+    public void testProjection() {
+        Assert.assertEquals(FieldFilter.projection(new HashSet<String>(Arrays.asList("a.*.name")), null), new BasicDBObject("a", 1));
+        Assert.assertTrue(FieldFilter.projection(new HashSet<String>(Arrays.asList("b", "*.name")), null).isEmpty());
+        Assert.assertEquals(FieldFilter.projection(null, new HashSet<String>(Arrays.asList("a.*.secret", "b"))), new BasicDBObject("b", 0));
+    }
 }
@@ -0,0 +1,52 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.elasticsearch.river.mongodb.Indexer.IndexedAttachment;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.gridfs.GridFSDBFile;
+
+@Test
+public class IndexedAttachmentTest {
+
+    private static final String MD5 = "d41d8cd98f00b204e9800998ecf8427e";
+
+    public void testSameContentIsPartiallyUpdated() {
+        IndexedAttachment indexed = new IndexedAttachment(file(MD5, 100, new BasicDBObject("author", "john")));
+        Assert.assertTrue(indexed.hasSameContent(file(MD5, 100, new BasicDBObject("author", "jane"))));
+    }
+
+    public void testMetadataKeyAddedIsPartiallyUpdated() {
+        IndexedAttachment indexed = new IndexedAttachment(file(MD5, 100, null));
+        Assert.assertTrue(indexed.hasSameContent(file(MD5, 100, new BasicDBObject("author", "jane"))));
+    }
+
+    public void testMetadataKeyRemovedIsIndexed() {
+        IndexedAttachment indexed = new IndexedAttachment(file(MD5, 100, new BasicDBObject("author", "john").append("tag", "a")));
+        Assert.assertFalse(indexed.hasSameContent(file(MD5, 100, new BasicDBObject("author", "john"))));
+    }
+
+    public void testContentChangedIsIndexed() {
+        IndexedAttachment indexed = new IndexedAttachment(file(MD5, 100, null));
+        Assert.assertFalse(indexed.hasSameContent(file("0cc175b9c0f1b6a831c399e269772661", 100, null)));
+        Assert.assertFalse(indexed.hasSameContent(file(MD5, 101, null)));
+    }
+
+    public void testWithoutMd5IsIndexed() {
+        IndexedAttachment indexed = new IndexedAttachment(file(null, 100, null));
+        Assert.assertFalse(indexed.hasSameContent(file(null, 100, null)));
+    }
+
+    private GridFSDBFile file(String md5, long length, DBObject metadata) {
+        GridFSDBFile file = mock(GridFSDBFile.class);
+        when(file.getMD5()).thenReturn(md5);
+        when(file.getLength()).thenReturn(length);
+        when(file.getMetaData()).thenReturn(metadata);
+        return file;
+    }
+}
@@ -0,0 +1,115 @@
+package org.elasticsearch.river.mongodb;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.river.mongodb.util.BSONXContentSerializer;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.DBRef;
+
+/*
+ * Guards the number of bytes allocated to turn a MongoDB document into an index request source. The bound is not
+ * absolute: it is the allocation of the map based serialization the serializer replaced, measured in the same run.
+ */
+@Test
+public class IndexerAllocationTest {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 20000;
+
+    private final ESLogger logger = Loggers.getLogger(getClass());
+
+    public void testSerializeAllocatesLessThanMapBaseline() throws Exception {
+        final DBObject document = createDocument();
+        final BSONXContentSerializer serializer = new BSONXContentSerializer(XContentType.JSON);
+
+        long baseline = allocatedBytesPerDocument(new Serialization() {
+            @Override
+            public int serialize() throws IOException {
+                return XContentFactory.jsonBuilder().map(document.toMap()).bytes().length();
+            }
+        });
+        long allocated = allocatedBytesPerDocument(new Serialization() {
+            @Override
+            public int serialize() throws IOException {
+                return serializer.serialize(document).bytes().length();
+            }
+        });
+
+        logger.info("Allocated {} bytes per document, {} bytes with the map baseline", allocated, baseline);
+        Assert.assertTrue(allocated < baseline, "Allocated " + allocated + " bytes per document, baseline " + baseline);
+    }
+
+    private interface Serialization {
+        int serialize() throws IOException;
+    }
+
+    private long allocatedBytesPerDocument(Serialization serialization) throws IOException {
+        com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long size = 0;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            size += serialization.serialize();
+        }
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            size += serialization.serialize();
+        }
+        long allocatedBytesPerDocument = (threadMXBean.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+        logger.debug("Source size {} bytes", size / (WARMUP_ITERATIONS + ITERATIONS));
+        return allocatedBytesPerDocument;
+    }
+
+    private com.sun.management.ThreadMXBean getThreadMXBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            throw new SkipException("Thread allocated bytes are not available on this JVM");
+        }
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocated bytes are not supported on this JVM");
+        }
+        if (!threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return threadMXBean;
+    }
+
+    private DBObject createDocument() {
+        BasicDBList tags = new BasicDBList();
+        tags.add("mongodb");
+        tags.add("elasticsearch");
+        tags.add("river");
+
+        BasicDBObject address = new BasicDBObject();
+        address.put("street", "123 Main Street");
+        address.put("city", "Springfield");
+        address.put("zip", 12345);
+
+        BasicDBObject document = new BasicDBObject();
+        document.put(MongoDBRiver.MONGODB_ID_FIELD, new ObjectId());
+        document.put("firstName", "John");
+        document.put("lastName", "Doe");
+        document.put("age", 34);
+        document.put("score", 12.5d);
+        document.put("active", Boolean.TRUE);
+        document.put("created", new Date());
+        document.put("tags", tags);
+        document.put("address", address);
+        document.put("author", new DBRef(null, "authors", new ObjectId()));
+        document.put("description", "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt "
+                + "ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris.");
+        return document;
+    }
+}
@@ -0,0 +1,106 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+@Test
+public class LatestVersionsTest {
+
+    public void testLatestOfKeepsLastVersionOfEachId() {
+        List<DBObject> sorted = Arrays.asList(version("a", 0), version("a", 1), version("b", 0), new BasicDBObject("_id", "c"),
+                version("d", 2), version("d", 3));
+
+        List<DBObject> latest = new ArrayList<DBObject>();
+        for (Iterator<DBObject> iterator = new LatestVersions().latestOf(sorted.iterator()); iterator.hasNext();) {
+            latest.add(iterator.next());
+        }
+
+        Assert.assertEquals(latest, Arrays.asList(sorted.get(1), sorted.get(2), sorted.get(3), sorted.get(5)));
+    }
+
+    public void testLatestOfSkipsLowerVersionOutOfOrder() {
+        List<DBObject> documents = Arrays.asList(version("a", 2), version("b", 0), version("a", 1), version("a", 3));
+
+        List<DBObject> latest = new ArrayList<DBObject>();
+        for (Iterator<DBObject> iterator = new LatestVersions().latestOf(documents.iterator()); iterator.hasNext();) {
+            latest.add(iterator.next());
+        }
+
+        Assert.assertEquals(latest, Arrays.asList(documents.get(0), documents.get(1), documents.get(3)));
+    }
+
+    public void testLatestOfEmpty() {
+        Assert.assertFalse(new LatestVersions().latestOf(new ArrayList<DBObject>().iterator()).hasNext());
+    }
+
+    public void testSkipSupersededVersion() {
+        DBCollection collection = collection(version("a", 2));
+        LatestVersions latestVersions = new LatestVersions();
+
+        Assert.assertTrue(latestVersions.isSuperseded(version("a", 1), collection));
+        Assert.assertFalse(latestVersions.isSuperseded(version("a", 2), collection));
+        Assert.assertFalse(latestVersions.isSuperseded(version("a", 3), collection));
+        // Version 3 is now the highest, without asking MongoDB again
+        Assert.assertTrue(latestVersions.isSuperseded(version("a", 2), collection));
+        verify(collection, times(1)).find(any(DBObject.class), any(DBObject.class));
+    }
+
+    public void testUnversionedIsNeverSuperseded() {
+        DBCollection collection = collection();
+        LatestVersions latestVersions = new LatestVersions();
+
+        Assert.assertFalse(latestVersions.isSuperseded(new BasicDBObject("_id", "a"), collection));
+        verify(collection, times(0)).find(any(DBObject.class), any(DBObject.class));
+    }
+
+    public void testDeleteOfLatestVersionIndexesPreviousOne() {
+        DBObject previous = version("a", 1);
+        DBCollection collection = collection(previous);
+        LatestVersions latestVersions = new LatestVersions();
+
+        Assert.assertSame(latestVersions.getReplacement(version("a", 2), collection, null), previous);
+        // The previous version is now the highest
+        Assert.assertFalse(latestVersions.isSuperseded(version("a", 1), collection));
+        Assert.assertTrue(latestVersions.isSuperseded(version("a", 0), collection));
+        verify(collection, times(1)).find(any(DBObject.class), any(DBObject.class));
+    }
+
+    public void testDeleteOfLastVersionDeletesDocument() {
+        LatestVersions latestVersions = new LatestVersions();
+
+        Assert.assertNull(latestVersions.getReplacement(version("a", 0), collection(), null));
+    }
+
+    private DBObject version(String id, int version) {
+        return new BasicDBObject("_id", new BasicDBObject("_id", id).append("version", version));
+    }
+
+    private DBCollection collection(DBObject... latest) {
+        DBCollection collection = mock(DBCollection.class);
+        DBCursor cursor = mock(DBCursor.class);
+        when(collection.find(any(DBObject.class), any(DBObject.class))).thenReturn(cursor);
+        when(cursor.sort(any(DBObject.class))).thenReturn(cursor);
+        when(cursor.limit(1)).thenReturn(cursor);
+        when(cursor.hasNext()).thenReturn(latest.length > 0);
+        if (latest.length > 0) {
+            when(cursor.next()).thenReturn(latest[0]);
+        }
+        return collection;
+    }
+}
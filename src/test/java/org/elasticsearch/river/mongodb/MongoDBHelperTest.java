@@ -0,0 +1,64 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.util.Map;
+
+import org.elasticsearch.common.Base64;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.river.mongodb.util.MongoDBHelper;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.mongodb.gridfs.GridFSDBFile;
+
+@Test
+public class MongoDBHelperTest {
+
+    private final byte[] content = "Lorem ipsum dolor sit amet, consectetur adipiscing elit".getBytes();
+
+    @SuppressWarnings("unchecked")
+    public void testSerializeStreamsContent() throws Exception {
+        Map<String, Object> document = XContentHelper.convertToMap(MongoDBHelper.serialize(file(), -1).bytes(), false).v2();
+
+        Map<String, Object> attachment = (Map<String, Object>) document.get("content");
+        Assert.assertEquals(attachment.get("title"), "lorem.txt");
+        Assert.assertEquals(Base64.decode((String) attachment.get("content")), content);
+        Assert.assertEquals(document.get("filename"), "lorem.txt");
+        Assert.assertEquals(((Number) document.get("length")).longValue(), content.length);
+    }
+
+    public void testSerializeLargeFileWithoutContent() throws Exception {
+        Map<String, Object> document = XContentHelper.convertToMap(MongoDBHelper.serialize(file(), content.length - 1).bytes(), false)
+                .v2();
+
+        Assert.assertFalse(document.containsKey("content"));
+        Assert.assertEquals(document.get("filename"), "lorem.txt");
+        Assert.assertEquals(((Number) document.get("length")).longValue(), content.length);
+    }
+
+    public void testSerializeMetadata() throws Exception {
+        GridFSDBFile file = file();
+        Map<String, Object> document = XContentHelper.convertToMap(MongoDBHelper.serializeMetadata(file).bytes(), false).v2();
+
+        Assert.assertFalse(document.containsKey("content"));
+        Assert.assertEquals(document.get("filename"), "lorem.txt");
+        Assert.assertEquals(document.get("md5"), "d41d8cd98f00b204e9800998ecf8427e");
+        verify(file, never()).getInputStream();
+    }
+
+    private GridFSDBFile file() {
+        GridFSDBFile file = mock(GridFSDBFile.class);
+        when(file.getInputStream()).thenReturn(new ByteArrayInputStream(content));
+        when(file.getLength()).thenReturn((long) content.length);
+        when(file.getFilename()).thenReturn("lorem.txt");
+        when(file.getContentType()).thenReturn("text/plain");
+        when(file.getMD5()).thenReturn("d41d8cd98f00b204e9800998ecf8427e");
+        when(file.getChunkSize()).thenReturn(256L * 1024);
+        return file;
+    }
+}
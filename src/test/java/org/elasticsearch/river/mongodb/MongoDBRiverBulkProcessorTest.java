@@ -0,0 +1,286 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse.Failure;
+import org.elasticsearch.action.bulk.BulkRequest;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.river.RiverIndexName;
+import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.testng.Assert;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+@Test
+public class MongoDBRiverBulkProcessorTest {
+
+    private static final long TIMEOUT = 5000;
+    private static final String REJECTED = "RemoteTransportException[[node][inet[/127.0.0.1:9300]][bulk/shard]]; "
+            + "nested: EsRejectedExecutionException[rejected execution (queue capacity 50)]";
+
+    // Bulk requests sent to the client, with their listener
+    private final BlockingQueue<SentBulk> sent = new LinkedBlockingQueue<SentBulk>();
+    private MongoDBRiverDefinition definition;
+    private RiverMetrics metrics;
+    private MongoDBRiverBulkProcessor bulkProcessor;
+
+    private static class SentBulk {
+        private final BulkRequest request;
+        private final ActionListener<BulkResponse> listener;
+
+        private SentBulk(BulkRequest request, ActionListener<BulkResponse> listener) {
+            this.request = request;
+            this.listener = listener;
+        }
+
+        private ActionRequest<?> action() {
+            Assert.assertEquals(request.numberOfActions(), 1);
+            return request.requests().get(0);
+        }
+
+        private void respond(BulkItemResponse item) {
+            listener.onResponse(new BulkResponse(new BulkItemResponse[] { item }, 1));
+        }
+    }
+
+    @BeforeMethod
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-retry.json");
+        RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                Streams.copyToByteArray(in), false).v2());
+        definition = MongoDBRiverDefinition.parseSettings("retry-river", RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, null);
+        metrics = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING).getMetrics();
+
+        sent.clear();
+        Client client = mock(Client.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) {
+                Object[] arguments = invocation.getArguments();
+                sent.add(new SentBulk((BulkRequest) arguments[0], (ActionListener<BulkResponse>) arguments[1]));
+                return null;
+            }
+        }).when(client).bulk(any(BulkRequest.class), any(ActionListener.class));
+        bulkProcessor = new MongoDBRiverBulkProcessor(mock(MongoDBRiver.class), definition, client, metrics);
+    }
+
+    @AfterMethod
+    public void tearDown() {
+        bulkProcessor.close();
+    }
+
+    public void testExternalVersionFollowsOplogOrder() {
+        long version1 = MongoDBRiverBulkProcessor.getExternalVersion(new BSONTimestamp(1392812400, 1));
+        long version2 = MongoDBRiverBulkProcessor.getExternalVersion(new BSONTimestamp(1392812400, 2));
+        long version3 = MongoDBRiverBulkProcessor.getExternalVersion(new BSONTimestamp(1392812401, 0));
+        Assert.assertTrue(version1 > 0);
+        Assert.assertTrue(version1 < version2);
+        Assert.assertTrue(version2 < version3);
+    }
+
+    public void testExternalVersionUnpacks() {
+        long version = MongoDBRiverBulkProcessor.getExternalVersion(new BSONTimestamp(1392812400, Integer.MAX_VALUE));
+        Assert.assertEquals(version >>> 32, 1392812400L);
+        Assert.assertEquals(version & 0xFFFFFFFFL, (long) Integer.MAX_VALUE);
+    }
+
+    public void testRetryRejectedItemAfterBackoff() throws Exception {
+        index("1", 1);
+        SentBulk first = next();
+        long rejectedAt = System.currentTimeMillis();
+        first.respond(rejected());
+
+        SentBulk retry = next();
+        // First attempt after half to one and a half retry_backoff
+        Assert.assertTrue(System.currentTimeMillis() - rejectedAt >= definition.getBulk().getRetryBackoff().millis() / 2);
+        Assert.assertSame(retry.action(), first.action());
+        retry.respond(indexed());
+        Assert.assertNull(sent.poll(500, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(metrics.indexedDocuments.sum(), 1);
+    }
+
+    public void testDeadLetterAfterMaxRetries() throws Exception {
+        index("1", 1);
+        SentBulk bulk = next();
+        ActionRequest<?> request = bulk.action();
+        for (int attempt = 0; attempt < definition.getBulk().getMaxRetries(); attempt++) {
+            bulk.respond(rejected());
+            bulk = next();
+            Assert.assertSame(bulk.action(), request);
+        }
+        bulk.respond(rejected());
+
+        IndexRequest deadLetter = (IndexRequest) next().action();
+        Assert.assertEquals(deadLetter.index(), definition.getDeadLetterIndexName());
+        Assert.assertEquals(deadLetter.type(), definition.getDeadLetterTypeName());
+        Assert.assertTrue(deadLetter.source().toUtf8().contains("EsRejectedExecutionException"));
+    }
+
+    public void testCheckpointWaitsForRetries() throws Exception {
+        index("1", 1);
+        bulkProcessor.checkpoint(new BSONTimestamp(1392812400, 1));
+        SentBulk bulk = next();
+        bulk.respond(rejected());
+
+        // The checkpoint is not stored while the request is retried
+        SentBulk retry = next();
+        Assert.assertSame(retry.action(), bulk.action());
+        retry.respond(indexed());
+
+        SentBulk checkpointBulk = next();
+        IndexRequest checkpoint = (IndexRequest) checkpointBulk.action();
+        Assert.assertEquals(checkpoint.index(), definition.getRiverIndexName());
+        Assert.assertEquals(checkpoint.id(), definition.getMongoOplogNamespace());
+
+        // Reported to the metrics once stored
+        Assert.assertFalse(metricsJson().contains("checkpoint_age_ms"));
+        checkpointBulk.respond(indexed());
+        Assert.assertTrue(metricsJson().contains("checkpoint_age_ms"));
+    }
+
+    public void testDropRetrySupersededByLaterWrite() throws Exception {
+        index("1", 1);
+        next().respond(rejected());
+        // Sent before the retry is due
+        index("1", 2);
+        next().respond(indexed());
+        Assert.assertNull(sent.poll(3 * definition.getBulk().getRetryBackoff().millis(), TimeUnit.MILLISECONDS));
+
+        // Nothing is pending anymore
+        bulkProcessor.checkpoint(new BSONTimestamp(1392812400, 2));
+        IndexRequest checkpoint = (IndexRequest) next().action();
+        Assert.assertEquals(checkpoint.index(), definition.getRiverIndexName());
+    }
+
+    public void testVersionConflictIsStale() throws Exception {
+        index("1", 1, new BSONTimestamp(1392812400, 1));
+        next().respond(conflict());
+
+        // Neither retried nor sent to the dead letter index
+        Assert.assertNull(sent.poll(3 * definition.getBulk().getRetryBackoff().millis(), TimeUnit.MILLISECONDS));
+        Assert.assertEquals(metrics.failedDocuments.sum(), 0);
+        bulkProcessor.checkpoint(new BSONTimestamp(1392812400, 1));
+        IndexRequest checkpoint = (IndexRequest) next().action();
+        Assert.assertEquals(checkpoint.index(), definition.getRiverIndexName());
+    }
+
+    public void testIndexedCallbackOnSuccess() throws Exception {
+        CountDownLatch onIndexed = new CountDownLatch(1);
+        bulkProcessor.addBulkRequest(definition.getIndexName(), definition.getTypeName(), "1",
+                jsonBuilder().startObject().field("value", 1).endObject(), null, null, null, countDown(onIndexed));
+        SentBulk bulk = next();
+        Assert.assertEquals(onIndexed.getCount(), 1);
+        bulk.respond(indexed());
+        Assert.assertEquals(onIndexed.getCount(), 0);
+    }
+
+    public void testReplaceUpdateOfMissingDocument() throws Exception {
+        CountDownLatch onIndexed = new CountDownLatch(1);
+        CountDownLatch onMissing = new CountDownLatch(1);
+        bulkProcessor.partialUpdateBulkRequest(definition.getIndexName(), definition.getTypeName(), "1",
+                jsonBuilder().startObject().field("value", 1).endObject(), null, null, null, countDown(onIndexed), countDown(onMissing));
+        next().respond(missing());
+
+        Assert.assertTrue(onMissing.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        Assert.assertEquals(onIndexed.getCount(), 1);
+        Assert.assertEquals(metrics.failedDocuments.sum(), 0);
+        // Neither retried nor sent to the dead letter index
+        Assert.assertNull(sent.poll(3 * definition.getBulk().getRetryBackoff().millis(), TimeUnit.MILLISECONDS));
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private void index(String id, int value) throws Exception {
+        index(id, value, null);
+    }
+
+    private void index(String id, int value, BSONTimestamp oplogTimestamp) throws Exception {
+        bulkProcessor.addBulkRequest(definition.getIndexName(), definition.getTypeName(), id,
+                jsonBuilder().startObject().field("value", value).endObject(), null, null, oplogTimestamp);
+    }
+
+    private String metricsJson() throws Exception {
+        XContentBuilder builder = jsonBuilder().startObject();
+        metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        return builder.endObject().string();
+    }
+
+    private SentBulk next() throws InterruptedException {
+        SentBulk bulk = sent.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+        Assert.assertNotNull(bulk, "No bulk request sent");
+        return bulk;
+    }
+
+    private BulkItemResponse rejected() {
+        BulkItemResponse item = item();
+        when(item.isFailed()).thenReturn(true);
+        when(item.getFailureMessage()).thenReturn(REJECTED);
+        return item;
+    }
+
+    private BulkItemResponse conflict() {
+        BulkItemResponse item = item();
+        Failure failure = mock(Failure.class);
+        when(failure.getStatus()).thenReturn(RestStatus.CONFLICT);
+        when(item.isFailed()).thenReturn(true);
+        when(item.getFailure()).thenReturn(failure);
+        when(item.getFailureMessage()).thenReturn("VersionConflictEngineException[[myindex][0] [mytype][1]: version conflict]");
+        return item;
+    }
+
+    private BulkItemResponse missing() {
+        BulkItemResponse item = item();
+        Failure failure = mock(Failure.class);
+        when(failure.getStatus()).thenReturn(RestStatus.NOT_FOUND);
+        when(item.isFailed()).thenReturn(true);
+        when(item.getFailure()).thenReturn(failure);
+        when(item.getFailureMessage()).thenReturn("DocumentMissingException[[myindex][0] [mytype][1]: document missing]");
+        return item;
+    }
+
+    private BulkItemResponse indexed() {
+        return item();
+    }
+
+    private BulkItemResponse item() {
+        BulkItemResponse item = mock(BulkItemResponse.class);
+        when(item.getItemId()).thenReturn(0);
+        when(item.getIndex()).thenReturn(definition.getIndexName());
+        when(item.getType()).thenReturn(definition.getTypeName());
+        return item;
+    }
+}
@@ -1,12 +1,14 @@
 package org.elasticsearch.river.mongodb;
 
 import java.io.InputStream;
+import java.util.Arrays;
 
 import org.elasticsearch.common.io.Streams;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.river.RiverIndexName;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
@@ -42,6 +44,11 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(MongoDBRiverDefinition.DEFAULT_FLUSH_INTERVAL, definition.getBulk().getFlushInterval());
             Assert.assertFalse(definition.isSkipInitialImport());
             Assert.assertFalse(definition.isStoreStatistics());
+            Assert.assertEquals(XContentType.JSON, definition.getSourceContentType());
+            Assert.assertFalse(definition.isExternalVersion());
+            Assert.assertFalse(definition.isReindexOnStandardsChange());
+            Assert.assertFalse(definition.isLatestVersionOnly());
+            Assert.assertTrue(definition.getEnrichments().isEmpty());
 
         } catch (Throwable t) {
             Assert.fail("testLoadMongoDBRiverSimpleDefinition failed", t);
@@ -71,6 +78,9 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertEquals(11000, definition.getConnectTimeout());
             Assert.assertEquals(riverName.getName(), definition.getRiverName());
             Assert.assertFalse(definition.isStoreStatistics());
+            Assert.assertTrue(definition.isExternalVersion());
+            Assert.assertTrue(definition.isReindexOnStandardsChange());
+            Assert.assertTrue(definition.isLatestVersionOnly());
             
             // Test bulk
             Assert.assertEquals(500, definition.getBulk().getBulkActions());
@@ -195,11 +205,83 @@ public class MongoDBRiverDefinitionTest {
             Assert.assertTrue(definition.isStoreStatistics());
             Assert.assertEquals(definition.getStatisticsIndexName(), "archive-stats");
             Assert.assertEquals(definition.getStatisticsTypeName(), "dummy-stats");
+            Assert.assertEquals(definition.getStatisticsInterval(), TimeValue.timeValueSeconds(30));
         } catch (Throwable t) {
             Assert.fail("testLoadMongoDBRiverDefinitionStoreStatistics failed", t);
         }
     }
 
+    @Test
+    public void testLoadMongoDBRiverDefinitionDeadLetter() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-dead-letter.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertTrue(definition.isDeadLetter());
+            Assert.assertEquals(definition.getDeadLetterIndexName(), "archive-failures");
+            Assert.assertEquals(definition.getDeadLetterTypeName(), "dummy-failure");
+            Assert.assertEquals(definition.getBulk().getMaxRetries(), 5);
+            Assert.assertEquals(definition.getBulk().getRetryBackoff(), TimeValue.timeValueMillis(250));
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionDeadLetter failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionSmileSource() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-smile.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(XContentType.SMILE, definition.getSourceContentType());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionSmileSource failed", t);
+        }
+    }
+
+    @Test
+    public void testLoadMongoDBRiverDefinitionEnrichments() {
+        try {
+            RiverName riverName = new RiverName("mongodb", "mongodb-" + System.currentTimeMillis());
+            InputStream in = getClass().getResourceAsStream("/org/elasticsearch/river/mongodb/test-mongodb-river-definition-enrichments.json");
+            RiverSettings riverSettings = new RiverSettings(ImmutableSettings.settingsBuilder().build(), XContentHelper.convertToMap(
+                    Streams.copyToByteArray(in), false).v2());
+            ScriptService scriptService = null;
+            MongoDBRiverDefinition definition = MongoDBRiverDefinition.parseSettings(riverName.name(),
+                    RiverIndexName.Conf.DEFAULT_INDEX_NAME, riverSettings, scriptService);
+            Assert.assertNotNull(definition);
+            Assert.assertEquals(definition.getEnrichments().size(), 2);
+
+            MongoDBRiverDefinition.Enrichment author = definition.getEnrichments().get(0);
+            Assert.assertEquals(author.getField(), "author");
+            Assert.assertEquals(author.getCollection(), "users");
+            Assert.assertEquals(author.getKey(), "login");
+            Assert.assertEquals(author.getFields(), Arrays.asList("name", "email"));
+            Assert.assertEquals(author.getCacheSize(), 500);
+            Assert.assertEquals(author.getCacheTtl().minutes(), 1);
+            Assert.assertFalse(author.isPreload());
+
+            MongoDBRiverDefinition.Enrichment publisher = definition.getEnrichments().get(1);
+            Assert.assertEquals(publisher.getKey(), "_id");
+            Assert.assertTrue(publisher.getFields().isEmpty());
+            Assert.assertEquals(publisher.getCacheSize(), MongoDBRiverDefinition.DEFAULT_ENRICHMENT_CACHE_SIZE);
+            Assert.assertEquals(publisher.getCacheTtl(), MongoDBRiverDefinition.DEFAULT_ENRICHMENT_CACHE_TTL);
+            Assert.assertTrue(publisher.isPreload());
+        } catch (Throwable t) {
+            Assert.fail("testLoadMongoDBRiverDefinitionEnrichments failed", t);
+        }
+    }
+
     @Test
     public void parseFilter() {
         String filter = "{\"o.lang\":\"de\"}";
@@ -0,0 +1,58 @@
+package org.elasticsearch.river.mongodb;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.BSONTimestamp;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.river.mongodb.MongoDBRiver.QueueEntry;
+import org.elasticsearch.river.mongodb.RiverMetrics.Histogram;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class RiverMetricsTest {
+
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 0; i < 98; i++) {
+            histogram.record(10, TimeUnit.MICROSECONDS);
+        }
+        histogram.record(1000, TimeUnit.MICROSECONDS);
+        histogram.record(2, TimeUnit.SECONDS);
+
+        Assert.assertEquals(histogram.count(), 100);
+        // Upper bounds of the power of two buckets
+        Assert.assertEquals(histogram.percentile(50), 15);
+        Assert.assertEquals(histogram.percentile(99), 1023);
+        Assert.assertEquals(histogram.percentile(100), (1L << 21) - 1);
+    }
+
+    public void testEmptyHistogram() {
+        Assert.assertEquals(new Histogram().percentile(99), 0);
+    }
+
+    public void testToXContent() throws Exception {
+        SharedContext context = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING);
+        RiverMetrics metrics = context.getMetrics();
+        metrics.oplogDocuments.add(3);
+        metrics.checkpoint(new BSONTimestamp((int) (System.currentTimeMillis() / 1000), 1));
+
+        XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+        metrics.toXContent(builder, ToXContent.EMPTY_PARAMS);
+        String json = builder.endObject().string();
+        Assert.assertTrue(json.contains("\"oplog\":3"), json);
+        Assert.assertTrue(json.contains("\"queue_size\":0"), json);
+        Assert.assertTrue(json.contains("\"checkpoint_age_ms\""), json);
+    }
+
+    public void testRegistry() {
+        RiverMetrics metrics = new SharedContext(new LinkedBlockingQueue<QueueEntry>(), Status.RUNNING).getMetrics();
+        RiverMetrics.register("metrics-river", metrics);
+        Assert.assertSame(RiverMetrics.get("metrics-river"), metrics);
+        RiverMetrics.unregister("metrics-river", metrics);
+        Assert.assertNull(RiverMetrics.get("metrics-river"));
+    }
+}
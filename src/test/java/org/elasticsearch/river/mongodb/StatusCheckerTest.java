@@ -0,0 +1,136 @@
+package org.elasticsearch.river.mongodb;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Client;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+@Test
+public class StatusCheckerTest {
+
+    // The status is only checked by the tests
+    private final ThreadFactory idleThreads = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            return new Thread();
+        }
+    };
+
+    public void testPollOnlyWhileRiversRegistered() {
+        StatusChecker checker = new StatusChecker();
+        MongoDBRiver first = river("first", Status.RUNNING, mock(Client.class));
+        MongoDBRiver second = river("second", Status.RUNNING, mock(Client.class));
+
+        checker.add(first, idleThreads);
+        checker.add(second, idleThreads);
+        Assert.assertTrue(checker.isPolling());
+        checker.remove(first);
+        Assert.assertTrue(checker.isPolling());
+        checker.remove(second);
+        Assert.assertFalse(checker.isPolling());
+    }
+
+    public void testRemoveReplacedRiver() {
+        StatusChecker checker = new StatusChecker();
+        MongoDBRiver replaced = river("river", Status.RUNNING, mock(Client.class));
+        MongoDBRiver river = river("river", Status.RUNNING, mock(Client.class));
+
+        checker.add(replaced, idleThreads);
+        checker.add(river, idleThreads);
+        // The river closed last must not unregister the new one
+        checker.remove(replaced);
+        Assert.assertTrue(checker.isPolling());
+    }
+
+    public void testRestartStoppedRiver() {
+        StatusChecker checker = new StatusChecker();
+        Client client = mock(Client.class);
+        MongoDBRiver stopped = river("stopped", Status.STOPPED, client);
+        checker.add(stopped, idleThreads);
+        statuses(client, status(Status.RUNNING));
+
+        checker.checkStatus();
+
+        verify(stopped).start();
+    }
+
+    public void testStopRunningRiver() {
+        StatusChecker checker = new StatusChecker();
+        Client client = mock(Client.class);
+        MongoDBRiver running = river("running", Status.RUNNING, client);
+        checker.add(running, idleThreads);
+        statuses(client, status(Status.STOPPED));
+
+        checker.checkStatus();
+
+        verify(running).stop();
+    }
+
+    public void testSkipFailedItem() {
+        StatusChecker checker = new StatusChecker();
+        Client client = mock(Client.class);
+        MongoDBRiver stopped = river("stopped", Status.STOPPED, client);
+        checker.add(stopped, idleThreads);
+        MultiGetItemResponse failed = mock(MultiGetItemResponse.class);
+        MultiGetResponse.Failure failure = mock(MultiGetResponse.Failure.class);
+        when(failed.isFailed()).thenReturn(true);
+        when(failed.getFailure()).thenReturn(failure);
+        when(failure.getMessage()).thenReturn("shard not available");
+        statuses(client, failed);
+
+        checker.checkStatus();
+
+        verify(stopped, never()).start();
+        verify(stopped, never()).stop();
+    }
+
+    public void testSkipUnregisteredRiver() {
+        StatusChecker checker = new StatusChecker();
+        MongoDBRiver river = river("river", Status.STOPPED, mock(Client.class));
+        checker.add(river, idleThreads);
+        checker.remove(river);
+
+        checker.checkStatus();
+
+        verify(river, never()).getClient();
+    }
+
+    private MongoDBRiver river(String name, Status status, Client client) {
+        MongoDBRiver river = mock(MongoDBRiver.class);
+        when(river.getRiverName()).thenReturn(name);
+        when(river.getStatus()).thenReturn(status);
+        when(river.getClient()).thenReturn(client);
+        return river;
+    }
+
+    private MultiGetItemResponse status(Status status) {
+        Map<String, Object> source = Collections.<String, Object> singletonMap(MongoDBRiver.TYPE,
+                Collections.singletonMap(MongoDBRiver.STATUS_FIELD, status.name()));
+        GetResponse response = mock(GetResponse.class);
+        when(response.isExists()).thenReturn(true);
+        when(response.getSourceAsMap()).thenReturn(source);
+        MultiGetItemResponse item = mock(MultiGetItemResponse.class);
+        when(item.getResponse()).thenReturn(response);
+        return item;
+    }
+
+    private void statuses(Client client, MultiGetItemResponse... items) {
+        MultiGetRequestBuilder request = mock(MultiGetRequestBuilder.class);
+        MultiGetResponse response = mock(MultiGetResponse.class);
+        when(client.prepareMultiGet()).thenReturn(request);
+        when(request.get()).thenReturn(response);
+        when(response.getResponses()).thenReturn(items);
+    }
+}
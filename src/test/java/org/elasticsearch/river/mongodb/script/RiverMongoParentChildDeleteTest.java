@@ -0,0 +1,87 @@
+package org.elasticsearch.river.mongodb.script;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+
+import org.elasticsearch.river.mongodb.RiverMongoDBTestAbstract;
+import org.testng.Assert;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+@Test
+public class RiverMongoParentChildDeleteTest extends RiverMongoDBTestAbstract {
+
+    private static final String TEST_MONGODB_RIVER_WITH_PARENT_TYPES_JSON = "/org/elasticsearch/river/mongodb/script/test-mongodb-river-with-parent-types.json";
+    private static final String BOOKS_MAPPING_JSON = "/org/elasticsearch/river/mongodb/script/books-mapping.json";
+    private static final String AUTHORS_MAPPING_JSON = "/org/elasticsearch/river/mongodb/script/authors-mapping.json";
+
+    private static final String DATABASE_NAME = "testparentchilddelete";
+    private static final String AUTHORS_COLLECTION = "authors";
+    private static final String AUTHORS_RIVER_NAME = "authors_delete_river";
+    private static final String AUTHOR_TYPE = "author";
+    private static final String BOOKS_COLLECTION = "books";
+    private static final String BOOKS_RIVER_NAME = "books_delete_river";
+    private static final String BOOK_TYPE = "book";
+    private static final String INDEX_NAME = "authors_books_delete_index";
+
+    private DB mongoDB;
+    private DBCollection mongoAuthorsCollection;
+    private DBCollection mongoBooksCollection;
+
+    @BeforeClass
+    public void setupEnvironment() throws Exception {
+        mongoDB = getMongo().getDB(DATABASE_NAME);
+        mongoDB.setWriteConcern(WriteConcern.REPLICAS_SAFE);
+        mongoAuthorsCollection = mongoDB.createCollection(AUTHORS_COLLECTION, null);
+        mongoBooksCollection = mongoDB.createCollection(BOOKS_COLLECTION, null);
+
+        getNode().client().admin().indices().prepareCreate(INDEX_NAME).get();
+        getNode().client().admin().indices().preparePutMapping(INDEX_NAME).setType(AUTHOR_TYPE)
+                .setSource(getJsonSettings(AUTHORS_MAPPING_JSON)).get();
+        getNode().client().admin().indices().preparePutMapping(INDEX_NAME).setType(BOOK_TYPE)
+                .setSource(getJsonSettings(BOOKS_MAPPING_JSON)).get();
+
+        super.createRiver(TEST_MONGODB_RIVER_WITH_PARENT_TYPES_JSON, AUTHORS_RIVER_NAME, String.valueOf(getMongoPort1()),
+                String.valueOf(getMongoPort2()), String.valueOf(getMongoPort3()), AUTHOR_TYPE, DATABASE_NAME, AUTHORS_COLLECTION,
+                INDEX_NAME, AUTHOR_TYPE);
+        String script = "if (ctx.document._parentId) { ctx._parent = ctx.document._parentId; ctx.document.remove('_parentId') }";
+        super.createRiver(TEST_MONGODB_RIVER_WITH_SCRIPT_JSON, BOOKS_RIVER_NAME, String.valueOf(getMongoPort1()),
+                String.valueOf(getMongoPort2()), String.valueOf(getMongoPort3()), DATABASE_NAME, BOOKS_COLLECTION, "groovy", script,
+                INDEX_NAME, BOOK_TYPE);
+    }
+
+    @AfterClass
+    public void cleanUp() {
+        super.deleteRiver(AUTHORS_RIVER_NAME);
+        super.deleteRiver(BOOKS_RIVER_NAME);
+        super.deleteIndex(INDEX_NAME);
+        mongoDB.dropDatabase();
+    }
+
+    public void testDeleteParentAfterFlush() throws Throwable {
+        DBObject author = new BasicDBObject("name", "Herge");
+        mongoAuthorsCollection.insert(author);
+        String authorId = author.get("_id").toString();
+        Thread.sleep(wait);
+        DBObject book = new BasicDBObject("_parentId", authorId).append("name", "Tintin au Congo");
+        mongoBooksCollection.insert(book);
+        Thread.sleep(wait);
+        refreshIndex(INDEX_NAME);
+        assertThat(getNode().client().prepareCount(INDEX_NAME).setTypes(BOOK_TYPE).get().getCount(), equalTo(1L));
+
+        // The parent delete is flushed and refreshed before its children
+        // are resolved
+        mongoAuthorsCollection.remove(new BasicDBObject("_id", author.get("_id")));
+        Thread.sleep(wait);
+        refreshIndex(INDEX_NAME);
+        Assert.assertEquals(getNode().client().prepareCount(INDEX_NAME).setTypes(AUTHOR_TYPE).get().getCount(), 0);
+        Assert.assertEquals(getNode().client().prepareCount(INDEX_NAME).setTypes(BOOK_TYPE).get().getCount(), 0);
+    }
+}